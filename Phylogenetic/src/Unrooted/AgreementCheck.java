@@ -0,0 +1,199 @@
+package Unrooted;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Linear-time agreement-forest test that neither copies nor changes its inputs. F is an agreement forest
+ * for T when every component C is homeomorphic to T restricted to C's leaves and the embeddings of the
+ * components in T are vertex-disjoint.
+ *
+ * Every leaf of T gets the colour of the component holding its taxon. One iterative post-order pass over T
+ * carries, per subtree, the single colour whose embedding leaves the subtree through the parent edge (with
+ * that colour's leaf count and XOR hash below the edge): a node reached by two different colours is shared
+ * by two embeddings. The same pass records the splits of each restriction T|C, one per suppressed edge, as
+ * canonical XOR hashes (a cluster or its complement, whichever is smaller); a pass over each component does
+ * the same for C. Homeomorphic restrictions have the same split sets, compared per colour by count and by
+ * the sum of the mixed hashes. Leaf hashes are 64-bit splitmix64 values, so a false match is a hash
+ * collision (probability about 2^-64 per component), not a structural case.
+ */
+public final class AgreementCheck {
+    private AgreementCheck() {
+    }
+
+    public static boolean isAgreementForest(PhylogeneticTree T, Forest F) {
+        List<PhylogeneticTree> components = F.components;
+        int colours = components.size();
+        if (colours == 0) {
+            return true;
+        }
+
+        // Colour T's leaves; a taxon in two components or missing from T ends the test.
+        int[] colourOf = new int[T.leafIndex.length];
+        Arrays.fill(colourOf, -1);
+        int[] size = new int[colours];
+        long[] total = new long[colours]; // XOR of the colour's leaf hashes
+        for (int c = 0; c < colours; c++) {
+            for (TreeNode node : components.get(c).nodes) {
+                if (!node.isLeaf) continue;
+                if (T.findLeaf(node.taxon) == null || colourOf[node.taxon] != -1) {
+                    return false;
+                }
+                colourOf[node.taxon] = c;
+                size[c]++;
+                total[c] ^= leafHash(node.taxon);
+            }
+        }
+
+        Splits splitsOfT = new Splits(colours);
+        if (!splitsOfT.collect(T, colourOf, size, total)) {
+            return false; // two embeddings share a vertex
+        }
+        Splits splitsOfF = new Splits(colours);
+        for (PhylogeneticTree component : components) {
+            if (!splitsOfF.collect(component, colourOf, size, total)) {
+                return false;
+            }
+        }
+        return Arrays.equals(splitsOfT.count, splitsOfF.count) && Arrays.equals(splitsOfT.sum, splitsOfF.sum);
+    }
+
+    static long leafHash(int taxon) {
+        return mix(taxon + 0x9E3779B97F4A7C15L);
+    }
+
+    // splitmix64 finaliser
+    static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    // Non-trivial splits of each colour's restriction, as a count and a sum of mixed canonical hashes.
+    private static final class Splits {
+        final int[] count;
+        final long[] sum;
+
+        // Post-order frames: node, the neighbour it was entered from, next neighbour to visit, and the
+        // colour open below the node (-1 if none) with its leaf count, hash and number of open children.
+        private TreeNode[] node = new TreeNode[64];
+        private TreeNode[] from = new TreeNode[64];
+        private int[] next = new int[64];
+        private int[] colour = new int[64];
+        private int[] leaves = new int[64];
+        private long[] hash = new long[64];
+        private int[] openChildren = new int[64];
+        private boolean[] ownLeaf = new boolean[64];
+        private int[] firstCount = new int[64]; // cluster of the first open child, for the top of an embedding
+        private long[] firstHash = new long[64];
+
+        Splits(int colours) {
+            count = new int[colours];
+            sum = new long[colours];
+        }
+
+        // Adds the splits of every colour's restriction of the tree; false if two colours meet at a node
+        // or a colour's leaves are not all reachable from the first node.
+        boolean collect(PhylogeneticTree tree, int[] colourOf, int[] size, long[] total) {
+            if (tree.nodes.isEmpty()) {
+                return true;
+            }
+            int top = push(0, tree.nodes.get(0), null, colourOf);
+            while (top >= 0) {
+                TreeNode current = node[top];
+                List<TreeNode> neighbors = current.neighbors;
+                if (next[top] < neighbors.size()) {
+                    TreeNode neighbor = neighbors.get(next[top]++);
+                    if (neighbor != from[top]) {
+                        top = push(top + 1, neighbor, current, colourOf);
+                    }
+                    continue;
+                }
+
+                // All children merged: close the colour at this node or pass it up the parent edge.
+                int c = colour[top];
+                boolean open = false;
+                if (c != -1) {
+                    if (leaves[top] == size[c]) {
+                        // Top of c's embedding. With exactly two branches below it, the node is suppressed
+                        // in T|C and both branches are the same split, recorded twice.
+                        if (!ownLeaf[top] && openChildren[top] == 2) {
+                            record(c, firstCount[top], firstHash[top], size, total, -1);
+                        }
+                    } else {
+                        open = true;
+                        if (ownLeaf[top] || openChildren[top] >= 2) {
+                            record(c, leaves[top], hash[top], size, total, 1); // a new split starts here
+                        }
+                    }
+                }
+
+                top--;
+                if (open) {
+                    if (top < 0) {
+                        return false; // some of the colour's leaves are not connected to the rest
+                    }
+                    int parentColour = colour[top];
+                    if (parentColour == -1) {
+                        colour[top] = c;
+                        leaves[top] = leaves[top + 1];
+                        hash[top] = hash[top + 1];
+                        openChildren[top] = 1;
+                        firstCount[top] = leaves[top + 1];
+                        firstHash[top] = hash[top + 1];
+                    } else if (parentColour != c) {
+                        return false;
+                    } else {
+                        leaves[top] += leaves[top + 1];
+                        hash[top] ^= hash[top + 1];
+                        if (openChildren[top]++ == 0) {
+                            firstCount[top] = leaves[top + 1];
+                            firstHash[top] = hash[top + 1];
+                        }
+                    }
+                }
+            }
+            return true;
+        }
+
+        private int push(int top, TreeNode current, TreeNode parent, int[] colourOf) {
+            if (top == node.length) {
+                grow();
+            }
+            node[top] = current;
+            from[top] = parent;
+            next[top] = 0;
+            openChildren[top] = 0;
+            int c = current.isLeaf && current.taxon >= 0 && current.taxon < colourOf.length ? colourOf[current.taxon] : -1;
+            colour[top] = c;
+            ownLeaf[top] = c != -1;
+            leaves[top] = c != -1 ? 1 : 0;
+            hash[top] = c != -1 ? leafHash(current.taxon) : 0L;
+            return top;
+        }
+
+        private void record(int c, int clusterSize, long clusterHash, int[] size, long[] total, int sign) {
+            if (clusterSize < 2 || clusterSize > size[c] - 2) {
+                return; // trivial split
+            }
+            long complement = total[c] ^ clusterHash;
+            long canonical = Long.compareUnsigned(clusterHash, complement) <= 0 ? clusterHash : complement;
+            count[c] += sign;
+            sum[c] += sign * mix(canonical);
+        }
+
+        private void grow() {
+            int capacity = node.length * 2;
+            node = Arrays.copyOf(node, capacity);
+            from = Arrays.copyOf(from, capacity);
+            next = Arrays.copyOf(next, capacity);
+            colour = Arrays.copyOf(colour, capacity);
+            leaves = Arrays.copyOf(leaves, capacity);
+            hash = Arrays.copyOf(hash, capacity);
+            openChildren = Arrays.copyOf(openChildren, capacity);
+            ownLeaf = Arrays.copyOf(ownLeaf, capacity);
+            firstCount = Arrays.copyOf(firstCount, capacity);
+            firstHash = Arrays.copyOf(firstHash, capacity);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package Unrooted;
+
+/**
+ * Finds the smallest budget k with a solution between a lower bound (no smaller k can succeed) and an upper
+ * bound (a solution with that many cuts is already known), running only the decision searches needed.
+ * Budgets just above the lower bound are tried first with growing steps (1, 2, 4, ... above it), since a
+ * failing search is cheaper the smaller its budget; once a search succeeds, the solution it found (maybe
+ * smaller than its budget) becomes the new upper bound and the rest of the interval is bisected. When the
+ * bounds meet, no search runs at all.
+ *
+ * The lower bound, and every failed search, is taken as proven, so an error in a bound becomes the answer.
+ * Given a check decision, the answer is confirmed by one more search at the budget below it. The check
+ * should not prune with the bounds, or it repeats their error; it is a debugging aid, since that search is
+ * the most expensive failing one.
+ */
+public final class BudgetSearch {
+    public static final int GAVE_UP = Integer.MIN_VALUE; // a decision that stopped early: the search is abandoned
+
+    // One decision search: the cuts of a solution found within budget k, -1 if there is none, or GAVE_UP.
+    public interface Decision {
+        int solve(int k);
+    }
+
+    private BudgetSearch() {
+    }
+
+    // Smallest k in [lower, upper] that succeeds, given that upper does; GAVE_UP if a decision gave up.
+    public static int minimum(int lower, int upper, Decision decision) {
+        return minimum(lower, upper, decision, null);
+    }
+
+    // As above; if check is not null, throws when it succeeds at the budget below the answer.
+    public static int minimum(int lower, int upper, Decision decision, Decision check) {
+        int step = 1;
+        boolean bisect = false;
+        while (lower < upper) {
+            int k = bisect ? lower + (upper - lower - 1) / 2 : Math.min(lower + step - 1, upper - 1);
+            int cuts = decision.solve(k);
+            if (cuts == GAVE_UP) {
+                return GAVE_UP;
+            }
+            if (cuts >= 0) {
+                upper = Math.min(cuts, k);
+                bisect = true;
+            } else {
+                lower = k + 1;
+                step *= 2;
+            }
+        }
+        if (check != null && upper > 0) {
+            int cuts = check.solve(upper - 1);
+            if (cuts >= 0) {
+                throw new IllegalStateException("A bound is wrong: minimum " + upper + " found, but a solution with "
+                        + cuts + " cuts exists");
+            }
+        }
+        return upper;
+    }
+}
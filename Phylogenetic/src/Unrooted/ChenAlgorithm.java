@@ -2,16 +2,28 @@ package Unrooted;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.List;
+import java.util.function.IntSupplier;
 
 public class ChenAlgorithm {
     public  PhylogeneticTree T; // Tree T
     public  Forest F; // Forest F' 
     private int solutionCount = 0;
     private static final int MAX_SOLUTIONS = 10;
+    private int maxSolutions = MAX_SOLUTIONS; // solveMinimum stops at the first one
+    private final MutationLog log = new MutationLog(); // branches mutate in place and roll back to a mark
+    private List<int[]> solution; // taxon sets removed by the first solution found, the last one is what remains of T
+    private boolean pruning = true; // lower bounds cut branches (off only in checkMinimum's search)
+    private FailedStates failed; // states known to fail in the current call (across all budgets in solveMinimum)
+    private static final int UNBOUNDED = Integer.MAX_VALUE / 2; // budget of the greedy dive: no bound prunes it
 
     public  int recursionCounter;
+    public int boundSamples = ConvexBound.SEARCH_SAMPLES; // characters sampled for the lower bound at each node (0: off)
+    public boolean checkMinimum = false; // debugging: solveMinimum confirms, unpruned, that the budget below its answer fails
+    public int boundCuts; // branches cut off because the lower bound exceeded the budget
+    public int conflictCuts; // branches cut off because the conflicting-cherry bound exceeded the budget
+    public int pathCuts; // path splits skipped because cutting the side edges alone exceeds the budget
+    public int decisions; // decision searches (one budget each) run by solveMinimum
 
     public ChenAlgorithm(PhylogeneticTree T, PhylogeneticTree Tprime) {
         this.T = T;
@@ -21,26 +33,263 @@ public class ChenAlgorithm {
     
     // Public method: start the algorithm by calling solve with deep-copied T.
     public boolean solve(int k) {
-        return solve(this.T.copyTree(), this.F.copyForest(), k , new ArrayList<>());
+        // Everything the search allocates from the arena is handed back in one step when it returns.
+        NodeArena arena = NodeArena.get();
+        long scope = arena.open();
+        failed = new FailedStates();
+        Forest forest = this.F.copyForest();
+        try {
+            return solve(this.T.copyTree(), forest, k , new ArrayList<>());
+        } finally {
+            forest.release(); // F's components are no longer shared with the working copy
+            log.clear();
+            arena.close(scope);
+            failed = null;
+        }
     }
     
+    // Smallest k <= maxK for which solve(k) succeeds, or -1 if there is none; getSolution() then holds a
+    // witness. The instance is copied and reduced once; a greedy dive bounds k from above and the root
+    // lower bounds from below, and BudgetSearch runs only the budgets needed in between, each in place and
+    // undone. States that failed stay known for the other budgets.
+    public int solveMinimum(int maxK) {
+        NodeArena arena = NodeArena.get();
+        long scope = arena.open();
+        failed = new FailedStates();
+        maxSolutions = 1;
+        solution = null;
+        Forest forest = this.F.copyForest();
+        try {
+            PhylogeneticTree T_local = this.T.copyTree();
+            T_local.setLog(log);
+            forest.setLog(log);
+            ArrayList<int[]> deletedLabels = new ArrayList<>();
+            reduce(T_local, forest, deletedLabels);
+            int mark = log.mark();
+            int lowest = ConflictBound.lowerBound(T_local, forest); // no smaller budget can succeed
+            if (boundSamples > 0) {
+                lowest = Math.max(lowest, rootBound(T_local, forest));
+            }
+            int highest = dive(T_local, forest, new ArrayList<>(deletedLabels));
+            log.undo(mark);
+            if (highest < 0) {
+                highest = decide(T_local, forest, UNBOUNDED, deletedLabels, mark); // the dive met a dead end
+            }
+            int k = BudgetSearch.minimum(Math.min(lowest, highest), Math.min(highest, maxK + 1),
+                    budget -> decide(T_local, forest, budget, deletedLabels, mark),
+                    checkMinimum ? budget -> unpruned(() -> decide(T_local, forest, budget, deletedLabels, mark)) : null);
+            return k <= maxK ? k : -1;
+        } finally {
+            forest.release();
+            log.clear();
+            arena.close(scope);
+            failed = null;
+            maxSolutions = MAX_SOLUTIONS;
+        }
+    }
+
+    // Cuts of an agreement forest found by one greedy descent, without branching; getSolution() then holds
+    // it. An upper bound on the distance, usually close to it.
+    public int upperBound() {
+        NodeArena arena = NodeArena.get();
+        long scope = arena.open();
+        maxSolutions = 1;
+        solution = null;
+        Forest forest = this.F.copyForest();
+        try {
+            PhylogeneticTree T_local = this.T.copyTree();
+            T_local.setLog(log);
+            forest.setLog(log);
+            ArrayList<int[]> deletedLabels = new ArrayList<>();
+            reduce(T_local, forest, deletedLabels);
+            int mark = log.mark();
+            int cuts = dive(T_local, forest, new ArrayList<>(deletedLabels));
+            log.undo(mark);
+            return cuts >= 0 ? cuts : decide(T_local, forest, UNBOUNDED, deletedLabels, mark); // a dead end: search instead
+        } finally {
+            forest.release();
+            log.clear();
+            arena.close(scope);
+            maxSolutions = MAX_SOLUTIONS;
+        }
+    }
+
+    // Greedy descent: at each cherry take, without backtracking, the child (cut a, cut b, or split the path
+    // keeping one side edge) whose cuts plus the lower bound of its reduced state are smallest. Returns the
+    // cuts of the agreement forest reached, recorded as the solution, or -1 at a dead end. Changes T_local
+    // and forest in place; the caller undoes them.
+    private int dive(PhylogeneticTree T_local, Forest forest, ArrayList<int[]> deletedLabels) {
+        while (true) {
+            reduce(T_local, forest, deletedLabels);
+            List<TreeNode> cherry = T_local.firstCherry();
+            if (cherry == null) {
+                if (!TreeUtils.isAgreementForest(T_local, forest)) {
+                    return -1;
+                }
+                solution = null;
+                recordSolution(T_local, deletedLabels);
+                return solution.size() - 1;
+            }
+            int a = cherry.get(0).taxon;
+            int b = cherry.get(1).taxon;
+            List<List<TreeNode>> sideEdges = new ArrayList<>();
+            if (!inDifferentComponents(forest, a, b, T_local)) {
+                PhylogeneticTree component = forest.writable(forest.componentOfLeaf(a));
+                List<TreeNode> path = component.findPath(component.findLeaf(a), component.findLeaf(b));
+                for (TreeNode node : path) {
+                    for (TreeNode neighbor : node.neighbors) {
+                        if (!path.contains(neighbor)) {
+                            sideEdges.add(Arrays.asList(node, neighbor));
+                        }
+                    }
+                }
+                if (sideEdges.size() <= 1) {
+                    sideEdges.clear(); // degenerate: keeping the only side edge would change nothing
+                }
+            }
+
+            // Score every option by the conflicting-cherry bound, then refine with the sampled bound in order
+            // of that score, skipping options that cannot beat the best refined score.
+            int mark = log.mark();
+            int options = 2 + sideEdges.size();
+            long[] order = new long[options]; // (score << 32 | option)
+            int scored = 0;
+            int lowestScore = Integer.MAX_VALUE;
+            for (int option = 0; option < options; option++) {
+                if (option >= 2 && sideEdges.size() - 1 > lowestScore) {
+                    break; // a score is at least the option's cost
+                }
+                int cost = applyOption(forest, a, b, sideEdges, option);
+                reduce(T_local, forest, new ArrayList<>(deletedLabels));
+                int score = cost + ConflictBound.lowerBound(T_local, forest);
+                log.undo(mark);
+                order[scored++] = (long) score << 32 | option;
+                lowestScore = Math.min(lowestScore, score);
+            }
+            order = Arrays.copyOf(order, scored);
+            Arrays.sort(order);
+            int best = (int) order[0];
+            int bestScore = Integer.MAX_VALUE;
+            for (long entry : order) {
+                int score = (int) (entry >>> 32);
+                if (score >= bestScore) {
+                    break;
+                }
+                int option = (int) entry;
+                int cost = applyOption(forest, a, b, sideEdges, option);
+                reduce(T_local, forest, new ArrayList<>(deletedLabels));
+                long key = FailedStates.key(T_local, forest, false);
+                score = Math.max(score, cost + ConvexBound.lowerBound(T_local, forest, ConvexBound.SEARCH_SAMPLES, key));
+                log.undo(mark);
+                if (score < bestScore) {
+                    best = option;
+                    bestScore = score;
+                }
+            }
+            applyOption(forest, a, b, sideEdges, best);
+        }
+    }
+
+    // Option 0 cuts off a, option 1 cuts off b, option 2 + i cuts every side edge but the i-th; returns the cuts.
+    private static int applyOption(Forest forest, int a, int b, List<List<TreeNode>> sideEdges, int option) {
+        if (option < 2) {
+            forest.cutOff(option == 0 ? a : b);
+            return 1;
+        }
+        for (List<TreeNode> edge : sideEdges) {
+            forest.cutEdgeInComponent(edge.get(0), edge.get(1));
+        }
+        List<TreeNode> kept = sideEdges.get(option - 2);
+        forest.mergeEdge(kept.get(0), kept.get(1));
+        return sideEdges.size() - 1;
+    }
+
+    // One decision search from the reduced root state (undone afterwards): the cuts of the agreement forest
+    // found within budget k, which then replaces the solution, or -1 if there is none (the solution stays).
+    private int decide(PhylogeneticTree T_local, Forest forest, int k, ArrayList<int[]> deletedLabels, int mark) {
+        decisions++;
+        List<int[]> previous = solution;
+        solution = null;
+        solutionCount = 0;
+        boolean found = solve(T_local, forest, k, new ArrayList<>(deletedLabels));
+        log.undo(mark);
+        if (!found) {
+            solution = previous;
+            return -1;
+        }
+        return solution.size() - 1;
+    }
+
+    // One decision search with the lower bounds off and its own failed-state table, since states that failed
+    // under the bounds may have failed only because of them.
+    private int unpruned(IntSupplier search) {
+        FailedStates kept = failed;
+        failed = new FailedStates();
+        pruning = false;
+        try {
+            return search.getAsInt();
+        } finally {
+            pruning = true;
+            failed = kept;
+        }
+    }
+
     // The main recursive method; now explicitly passes a local tree T_local.
-    public boolean solve(PhylogeneticTree T_local, Forest forest, int k, ArrayList<String> deletedLabels) {
-        if (solutionCount >= MAX_SOLUTIONS) return false;
+    // T_local and forest are changed in place; the caller undoes the changes through the log.
+    public boolean solve(PhylogeneticTree T_local, Forest forest, int k, ArrayList<int[]> deletedLabels) {
+        if (solutionCount >= maxSolutions) return false;
         recursionCounter++;
+        T_local.setLog(log);
+        forest.setLog(log);
+        reduce(T_local, forest, deletedLabels);
+    
+        if(k<0){
+            return false;
+        }
+
+        // The same reduced state is often reached along different orders of cuts; a known failure prunes it.
+        long key = FailedStates.key(T_local, forest, false);
+        if (failed != null && failed.hasFailed(key, k)) {
+            return false;
+        }
+        boolean found = !exceedsBudget(T_local, forest, k, key) && branch(T_local, forest, k, deletedLabels);
+        if (!found && failed != null && solutionCount < maxSolutions) {
+            failed.recordFailure(key, k); // a false after the solution limit was hit proves nothing
+        }
+        return found;
+    }
+
+    // Lower bound for the whole instance, from many characters sampled in parallel.
+    private static int rootBound(PhylogeneticTree T_local, Forest forest) {
+        return ConvexBound.lowerBound(T_local, forest, ConvexBound.ROOT_SAMPLES, FailedStates.key(T_local, forest, false));
+    }
+
+    // True if a lower bound (conflicting cherries, then convex characters) shows that k more cuts are not
+    // enough; the sampled bound is seeded by the state, so the same state always gets the same answer.
+    private boolean exceedsBudget(PhylogeneticTree T_local, Forest forest, int k, long key) {
+        if (!pruning || k >= UNBOUNDED) {
+            return false;
+        }
+        if (ConflictBound.lowerBound(T_local, forest) > k) {
+            conflictCuts++; // the near-linear bound first; the sampled one only when it is not enough
+            return true;
+        }
+        if (boundSamples > 0 && ConvexBound.lowerBound(T_local, forest, boundSamples, key) > k) {
+            boundCuts++;
+            return true;
+        }
+        return false;
+    }
+
+    // Tidy-up operations on the local tree and on each forest component, until none applies.
+    private void reduce(PhylogeneticTree T_local, Forest forest, ArrayList<int[]> deletedLabels) {
         while(true){
-            // Tidy-up operations on the local tree and on each forest component.
             boolean supres1 = T_local.suppressDegree2Nodes();
 
-            boolean supres2 = false;
-            for (PhylogeneticTree tree : forest.components) {
-                if(tree.suppressDegree2Nodes()){
-                    supres2 = true;
-                }
-            }
+            boolean supres2 = forest.suppressDegree2Nodes();
 
             boolean singleton = false;
-            ArrayList<String> deletedSingletons = TreeUtils.removeSingletons(forest, T_local);
+            ArrayList<int[]> deletedSingletons = TreeUtils.removeSingletons(forest, T_local);
             if(deletedSingletons.size() != 0){
                 singleton = true;
                 deletedLabels.addAll(deletedSingletons);
@@ -52,58 +301,47 @@ public class ChenAlgorithm {
                 break;
             }
         }
-    
-        if(k<0){
-            return false;
-        }        
+    }
 
-        
+    // Branch on the first cherry of the reduced T_local, or check the forest once no cherry is left.
+    private boolean branch(PhylogeneticTree T_local, Forest forest, int k, ArrayList<int[]> deletedLabels) {
         // Try to pick a cherry from the local tree.
-        List<List<TreeNode>> cherries = TreeUtils.findCherries(T_local);
-        if(cherries.size() > 0){
-            List<TreeNode> cherry = cherries.get(0);
+        List<TreeNode> cherry = T_local.firstCherry(); // from the live cherry index, no scan
+        if(cherry != null){
             TreeNode a = cherry.get(0);
             TreeNode b = cherry.get(1);
     
-            // Check using labels whether a and b lie in different components.
-            if (inDifferentComponents(forest, a.label, b.label , T_local)) {
+            // Check using taxon ids whether a and b lie in different components.
+            if (inDifferentComponents(forest, a.taxon, b.taxon , T_local)) {
                 // DIFFERENT COMPONENTS: Try cutting off a OR cutting off b.
 
                 //System.out.println(a.label + " " + b.label);
 
-                Forest copy1 = forest.copyForest();
-                copy1.cutOff(a.label);
+                int mark = log.mark();
+                forest.cutOff(a.taxon);
+                boolean found = solve(T_local, forest, k - 1 , new ArrayList<>(deletedLabels));
+                log.undo(mark);
+                if (found) {
+                    return true;
+                }
 
-                Forest copy2 = forest.copyForest();
-                copy2.cutOff(b.label);
-    
-                return solve(T_local.copyTree(), copy1, k - 1 , new ArrayList<>(deletedLabels) ) 
-                    || solve(T_local.copyTree(), copy2, k - 1 , new ArrayList<>(deletedLabels));
+                forest.cutOff(b.taxon);
+                found = solve(T_local, forest, k - 1 , new ArrayList<>(deletedLabels));
+                log.undo(mark);
+                return found;
             } else {
                 // System.out.println(a.label + " " + b.label + " " + k);
                 // SAME COMPONENT: Use Chen's branching rule (three branches)
-                return applyChenBranching(T_local.copyTree(), forest.copyForest(), a.label, b.label, k , new ArrayList<>(deletedLabels));
+                return applyChenBranching(T_local, forest, a.taxon, b.taxon, k , new ArrayList<>(deletedLabels));
             }
         }
 
         //If no cherries remain, check whether the forest is an agreement forest for T_local.
         if (TreeUtils.isAgreementForest(T_local, forest)) {
-            
-            if(T_local.nodes.size() != 0){
-                List<String> labels = new ArrayList<>();
-                for (TreeNode node : T_local.nodes) {
-                    if (node.isLeaf) {
-                        labels.add(node.label);
-                    }
-                }
-                // Sort for consistency and concatenate
-                Collections.sort(labels);
-                String combined = String.join("_", labels);
-                deletedLabels.add(combined);
-            }
+            recordSolution(T_local, deletedLabels);
+
+            //System.out.println(getSolutionLabels());
 
-            //System.out.println(deletedLabels);
-            
             solutionCount++;
             return true;
         }
@@ -111,40 +349,71 @@ public class ChenAlgorithm {
         return false; // No applicable cherries and not an agreement forest.
     }
 
+    // Keeps the first solution found: the taxon sets removed on the way here, then what remains of T_local.
+    private void recordSolution(PhylogeneticTree T_local, ArrayList<int[]> deletedLabels) {
+        if(T_local.nodes.size() != 0){
+            int[] combined = new int[0];
+            for (TreeNode node : T_local.nodes) {
+                if (node.isLeaf) {
+                    combined = TreeUtils.unionTaxa(combined, node.taxa);
+                }
+            }
+            deletedLabels.add(combined);
+        }
+        if (solution == null) {
+            solution = deletedLabels;
+        }
+    }
+
+    // Taxon sets of the components of the first solution found, or null if there is none yet.
+    public List<int[]> getSolution() {
+        return solution;
+    }
+
+    // The first solution as a forest: Tprime restricted to each of its taxon sets, or null.
+    public Forest getWitnessForest() {
+        return solution == null ? null : TreeUtils.restrictToBlocks(F.components.get(0), solution);
+    }
+
+    // Labels ("1_2_5" for merged taxa) of the first solution found, or null if there is none yet.
+    public List<String> getSolutionLabels() {
+        if (solution == null) {
+            return null;
+        }
+        List<String> labels = new ArrayList<>();
+        for (int[] taxa : solution) {
+            labels.add(TreeUtils.formatTaxa(taxa, T));
+        }
+        return labels;
+    }
+
     // Chen branching: branch on cutting off a, cutting off b, or splitting the path between a and b.
-    private boolean applyChenBranching(PhylogeneticTree T_local, Forest forest, String a, String b, int k , ArrayList<String> deletedLabels) {
+    private boolean applyChenBranching(PhylogeneticTree T_local, Forest forest, int a, int b, int k , ArrayList<int[]> deletedLabels) {
+
+        int mark = log.mark();
 
         //Branch 1: Cut off a.
-        Forest copy1 = forest.copyForest(); 
-        copy1.cutOff(a);
-        boolean branch1 = solve(T_local.copyTree(), copy1, k - 1 , new ArrayList<>(deletedLabels));
+        forest.cutOff(a);
+        boolean branch1 = solve(T_local, forest, k - 1 , new ArrayList<>(deletedLabels));
+        log.undo(mark);
 
         // Branch 2: Cut off b.
-        Forest copy2 = forest.copyForest();
-        copy2.cutOff(b);
-        boolean branch2 = solve(T_local.copyTree(), copy2, k - 1 , new ArrayList<>(deletedLabels));
+        forest.cutOff(b);
+        boolean branch2 = solve(T_local, forest, k - 1 , new ArrayList<>(deletedLabels));
+        log.undo(mark);
 
         //Branch 3: Split the path between a and b.
-        Forest copy3 = forest.copyForest();
-        boolean branch3 = splitPath(T_local.copyTree(), copy3, a, b, k , new ArrayList<>(deletedLabels));
+        boolean branch3 = splitPath(T_local, forest, a, b, k , new ArrayList<>(deletedLabels));
+        log.undo(mark);
         
         return branch1 || branch2 || branch3 ;
         //return branch3;
     }
 
-    // Check whether nodes with labels a and b are in different forest components.
-    private boolean inDifferentComponents(Forest forest, String a, String b , PhylogeneticTree T_local) {
-        PhylogeneticTree compA = null;
-        PhylogeneticTree compB = null;
-
-        for (PhylogeneticTree tree : forest.components) { 
-            if (TreeUtils.findLeafByLabel(tree, a) != null) {
-                compA = tree;
-            }
-            if (TreeUtils.findLeafByLabel(tree, b) != null) {
-                compB = tree;
-            }
-        }
+    // Check whether leaves with taxon ids a and b are in different forest components.
+    private boolean inDifferentComponents(Forest forest, int a, int b , PhylogeneticTree T_local) {
+        PhylogeneticTree compA = forest.componentOfLeaf(a);
+        PhylogeneticTree compB = forest.componentOfLeaf(b);
 
         if (compA == null || compB == null) {
             forest.printForest();
@@ -156,31 +425,29 @@ public class ChenAlgorithm {
         return (compA != compB);
     }
 
-    // Split the path between nodes with labels aLabel and bLabel.
+    // Split the path between the leaves with taxon ids aTaxon and bTaxon.
     // This branch tries all choices of keeping one side edge and cutting the others.
-    private boolean splitPath(PhylogeneticTree T_local, Forest forest, String aLabel, String bLabel, int k , ArrayList<String> deletedLabels)  {
-        TreeNode a = null;
-        TreeNode b = null;
-        PhylogeneticTree component = null;
-
-        for (PhylogeneticTree tree : forest.components) {
-            a = TreeUtils.findLeafByLabel(tree, aLabel);
-            b = TreeUtils.findLeafByLabel(tree, bLabel);
-            if(a != null && b!= null) {
-                component = tree;
-                break;
+    private boolean splitPath(PhylogeneticTree T_local, Forest forest, int aTaxon, int bTaxon, int k , ArrayList<int[]> deletedLabels)  {
+        PhylogeneticTree component = forest.inSameComponent(aTaxon, bTaxon) ? forest.componentOfLeaf(aTaxon) : null;
+        if (component != null) {
+            if (ConflictBound.splitCost(component, component.findLeaf(aTaxon), component.findLeaf(bTaxon)) > k) {
+                pathCuts++; // every choice of kept side edge overspends: skip before copying anything
+                return false;
             }
+            component = forest.writable(component); // path and side-edge nodes must stay valid across the cuts
         }
+        TreeNode a = component != null ? component.findLeaf(aTaxon) : null;
+        TreeNode b = component != null ? component.findLeaf(bTaxon) : null;
 
         if (a == null || b == null) {
-            throw new RuntimeException("Nodes with label a or b not found in any component!");
+            throw new RuntimeException("Leaves with taxon a or b not found in any component!");
         }
         if (component == null) {
             throw new RuntimeException("Nodes a and b are not in the same component!");
         }
 
         // Find the unique path between a and b.
-        List<TreeNode> path = TreeUtils.findPath(a, b, new ArrayList<>(), new ArrayList<>()); 
+        List<TreeNode> path = component.findPath(a, b);
         if (path == null) {
             throw new RuntimeException("No path found between a and b!");
         }
@@ -213,9 +480,9 @@ public class ChenAlgorithm {
 
             forest.mergeEdge(u, v); // Reconnect
 
-            Forest forestCopy = forest.copyForest(); // Copy with merged edge
-
-            result |= solve(T_local.copyTree(), forestCopy, k - (sideEdges.size() - 1), new ArrayList<>(deletedLabels));
+            int mark = log.mark(); // state with merged edge
+            result |= solve(T_local, forest, k - (sideEdges.size() - 1), new ArrayList<>(deletedLabels));
+            log.undo(mark);
 
             // Disconnect again
             forest.cutEdgeInComponent(u, v);
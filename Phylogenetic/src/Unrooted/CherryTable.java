@@ -0,0 +1,91 @@
+package Unrooted;
+
+import java.util.Arrays;
+
+/**
+ * Hash index from cherries to ints, keyed by the unordered pair of the two leaves' taxon ids:
+ * {a, b} is stored as min << 32 | max, so both orders hit the same entry. Open addressing over
+ * primitive arrays (no boxing); clear() empties it for the next round without reallocating.
+ */
+public final class CherryTable {
+    private static final long FREE = -1L; // taxon ids are >= 0, so no packed key is negative
+
+    private long[] keys;
+    private int[] values;
+    private int size;
+
+    public CherryTable() {
+        keys = new long[64];
+        values = new int[64];
+        Arrays.fill(keys, FREE);
+    }
+
+    public static long key(int a, int b) {
+        return a < b ? (long) a << 32 | b : (long) b << 32 | a;
+    }
+
+    // Maps {a, b} to value unless the pair is already present.
+    public void putIfAbsent(int a, int b, int value) {
+        if (2 * (size + 1) > keys.length) {
+            grow();
+        }
+        long key = key(a, b);
+        int slot = slot(key);
+        while (keys[slot] != FREE) {
+            if (keys[slot] == key) {
+                return;
+            }
+            slot = (slot + 1) & (keys.length - 1);
+        }
+        keys[slot] = key;
+        values[slot] = value;
+        size++;
+    }
+
+    // Value stored for {a, b}, or -1 if the pair is not a cherry here.
+    public int get(int a, int b) {
+        long key = key(a, b);
+        int slot = slot(key);
+        while (keys[slot] != FREE) {
+            if (keys[slot] == key) {
+                return values[slot];
+            }
+            slot = (slot + 1) & (keys.length - 1);
+        }
+        return -1;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        if (size > 0) {
+            Arrays.fill(keys, FREE);
+            size = 0;
+        }
+    }
+
+    private int slot(long key) {
+        long h = key * 0x9E3779B97F4A7C15L; // Fibonacci hashing: the high bits are well mixed
+        return (int) (h >>> 32) & (keys.length - 1);
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new int[oldKeys.length * 2];
+        Arrays.fill(keys, FREE);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != FREE) {
+                int slot = slot(oldKeys[i]);
+                while (keys[slot] != FREE) {
+                    slot = (slot + 1) & (keys.length - 1);
+                }
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+}
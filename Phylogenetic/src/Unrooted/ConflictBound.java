@@ -0,0 +1,155 @@
+package Unrooted;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Cheap lower bound on the cuts still needed, from a greedy packing of incompatible quartets. A cherry
+ * {a, b} of T_local whose leaves share a forest component without being a cherry there conflicts with it:
+ * with a leaf c below the first side edge of their path and a leaf d below the last, abcd is ab|cd in
+ * T_local but ac|bd in the component. An agreement forest must cut an edge of that quartet's embedding
+ * (the a-b path and the two legs down to c and d), since otherwise the four leaves stay together with the
+ * wrong topology. Quartets whose embeddings are pairwise edge-disjoint need distinct cuts, so the number
+ * packed is a lower bound. Cutting only near the path is not enough to count: a side subtree can also be
+ * emptied by cuts deep inside it, which may lie on another conflict's path, hence the legs are reserved too.
+ *
+ * Shorter paths are packed first, and legs step into edges not yet reserved where they can, which keeps
+ * the packing large. An edge is named by its lower node under the component's PathIndex rooting and
+ * marked with a Traversal epoch, so the whole bound costs one walk over each candidate embedding.
+ */
+public final class ConflictBound {
+
+    private ConflictBound() {
+    }
+
+    public static int lowerBound(PhylogeneticTree T_local, Forest forest) {
+        List<List<TreeNode>> paths = new ArrayList<>();
+        List<PathIndex> indexes = new ArrayList<>();
+        for (TreeNode parent : T_local.cherryNodes()) {
+            TreeNode a = null;
+            for (TreeNode neighbor : parent.neighbors) {
+                if (!neighbor.isLeaf) {
+                    continue;
+                }
+                if (a == null) {
+                    a = neighbor;
+                    continue;
+                }
+                addConflict(forest, a.taxon, neighbor.taxon, paths, indexes);
+                break;
+            }
+        }
+
+        Integer[] order = new Integer[paths.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingInt(i -> paths.get(i).size()));
+
+        long epoch = Traversal.newEpoch();
+        int packed = 0;
+        for (int i : order) {
+            List<TreeNode> edges = embedding(indexes.get(i), paths.get(i), epoch);
+            if (edges != null) {
+                for (TreeNode lower : edges) {
+                    Traversal.mark(lower, epoch);
+                }
+                packed++;
+            }
+        }
+        return packed;
+    }
+
+    // Cuts the path-splitting branch between the leaves a and b of component spends: every side edge of the
+    // path but the one kept. Read-only, so it can be asked before the component is copied; 0 if the index
+    // does not cover the leaves.
+    public static int splitCost(PhylogeneticTree component, TreeNode a, TreeNode b) {
+        PathIndex index = PathIndex.of(component);
+        List<TreeNode> path = index.covers(a, b) ? index.path(a, b) : null;
+        if (path == null) {
+            return 0;
+        }
+        int sideEdges = 0;
+        for (int i = 1; i < path.size() - 1; i++) {
+            sideEdges += path.get(i).neighbors.size() - 2;
+        }
+        return sideEdges - 1;
+    }
+
+    // Records the forest path between the two taxa if they share a component and are not a cherry there.
+    private static void addConflict(Forest forest, int aTaxon, int bTaxon, List<List<TreeNode>> paths, List<PathIndex> indexes) {
+        PhylogeneticTree component = forest.componentOfLeaf(aTaxon);
+        if (component == null || component != forest.componentOfLeaf(bTaxon)) {
+            return; // already apart
+        }
+        TreeNode a = component.findLeaf(aTaxon);
+        TreeNode b = component.findLeaf(bTaxon);
+        PathIndex index = PathIndex.of(component);
+        if (!index.covers(a, b)) {
+            return;
+        }
+        List<TreeNode> path = index.path(a, b);
+        if (path != null && path.size() > 3) {
+            paths.add(path);
+            indexes.add(index);
+        }
+    }
+
+    // Edges (as lower nodes) of the quartet embedding of the path with legs off its first and last inner
+    // nodes, or null if one of them is already reserved.
+    private static List<TreeNode> embedding(PathIndex index, List<TreeNode> path, long epoch) {
+        List<TreeNode> edges = new ArrayList<>();
+        int last = path.size() - 1;
+        for (int i = 0; i < last; i++) {
+            edges.add(lowerEnd(index, path.get(i), path.get(i + 1)));
+        }
+        if (!addLeg(index, path.get(0), path.get(1), path.get(2), epoch, edges)
+                || !addLeg(index, path.get(last - 2), path.get(last - 1), path.get(last), epoch, edges)) {
+            return null;
+        }
+        for (TreeNode lower : edges) {
+            if (Traversal.isMarked(lower, epoch)) {
+                return null;
+            }
+        }
+        return edges;
+    }
+
+    // Adds the edges from node down one of its side subtrees (away from both path neighbours) to a leaf,
+    // taking unreserved edges where there is a choice; false if node has no side subtree.
+    private static boolean addLeg(PathIndex index, TreeNode before, TreeNode node, TreeNode after, long epoch,
+            List<TreeNode> edges) {
+        TreeNode previous = before;
+        TreeNode current = node;
+        TreeNode skip = after;
+        while (!current.isLeaf) {
+            TreeNode next = null;
+            TreeNode nextLower = null;
+            for (TreeNode neighbor : current.neighbors) {
+                if (neighbor == previous || neighbor == skip) {
+                    continue;
+                }
+                TreeNode lower = lowerEnd(index, current, neighbor);
+                if (next == null || (Traversal.isMarked(nextLower, epoch) && !Traversal.isMarked(lower, epoch))) {
+                    next = neighbor;
+                    nextLower = lower;
+                }
+            }
+            if (next == null) {
+                return false;
+            }
+            edges.add(nextLower);
+            previous = current;
+            current = next;
+            skip = null;
+        }
+        return true;
+    }
+
+    // The endpoint of edge u-v farther from the root; it stands for the edge.
+    private static TreeNode lowerEnd(PathIndex index, TreeNode u, TreeNode v) {
+        return index.parent(index.slot(v)) == index.slot(u) ? v : u;
+    }
+}
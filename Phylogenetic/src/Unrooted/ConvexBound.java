@@ -0,0 +1,400 @@
+package Unrooted;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.stream.IntStream;
+
+/**
+ * Sampling lower bound on the TBR distance, ported from dmp_sampling_bound_code/ConvexBound.jj (Kelk, 2020)
+ * to work in process on PhylogeneticTree and Forest. A character (a partition of the taxa into states) that
+ * is convex on one side, i.e. whose states have disjoint embeddings there, scores states - 1 under
+ * parsimony on that tree; Fitch gives its score on the other side, and the gap bounds the distance.
+ *
+ * For a search state (T_local, forest with m components), every agreement forest reachable with c more
+ * cuts satisfies l_F - l_T <= c and l_T - l_F - (m - 1) <= c for each character, where l is the parsimony
+ * score (summed over components for the forest). With one component this is the d_MP <= d_TBR bound of
+ * the original. Characters are drawn uniformly from those convex on T_local or on every component, with at
+ * least minBlock taxa per state, by the original's counting DP (g: subtree done, h[m]: the root's state is
+ * still open with m taxa, minBlock meaning "at least"). Counts are kept as doubles normalised per node, as
+ * sampling only needs their ratios, so no tree is too large; all walks are iterative.
+ *
+ * Large sample counts are split into chunks sampled in parallel, each with its own seeded random source,
+ * so a given seed always gives the same bound. Trees that are not binary give the trivial bound 0.
+ */
+public final class ConvexBound {
+    public static final int DEFAULT_MIN_BLOCK = 2; // the original's choice for trees it can count exactly
+    public static final int SEARCH_SAMPLES = 16;   // characters per search node in the solvers
+    public static final int ROOT_SAMPLES = 256;    // characters for the whole instance, sampled in parallel
+    private static final int CHUNK = 64;           // samples per parallel task
+
+    private ConvexBound() {
+    }
+
+    // Lower bound on the TBR distance between two trees on the same taxa.
+    public static int lowerBound(PhylogeneticTree T1, PhylogeneticTree T2, int samples, long seed) {
+        Forest forest = new Forest();
+        forest.addComponent(T2);
+        return lowerBound(T1, forest, samples, seed, DEFAULT_MIN_BLOCK);
+    }
+
+    // Lower bound on the number of further cuts that turn the forest into an agreement forest for T_local.
+    public static int lowerBound(PhylogeneticTree T_local, Forest forest, int samples, long seed) {
+        return lowerBound(T_local, forest, samples, seed, DEFAULT_MIN_BLOCK);
+    }
+
+    public static int lowerBound(PhylogeneticTree T_local, Forest forest, int samples, long seed, int minBlock) {
+        if (minBlock < 1) {
+            throw new IllegalArgumentException("Each state needs at least one taxon");
+        }
+        Side tree = Side.of(Collections.singletonList(T_local), minBlock);
+        Side components = Side.of(forest.components, minBlock);
+        if (tree == null || components == null || samples <= 0) {
+            return 0;
+        }
+        int m = forest.components.size();
+        int taxa = Math.max(tree.maxTaxon, components.maxTaxon) + 1;
+        if (samples <= CHUNK) {
+            return sample(tree, components, m, taxa, samples, seed);
+        }
+        int chunks = (samples + CHUNK - 1) / CHUNK;
+        return IntStream.range(0, chunks).parallel()
+                .map(c -> sample(tree, components, m, taxa, Math.min(CHUNK, samples - c * CHUNK), seed + c))
+                .max().orElse(0);
+    }
+
+    // Best bound over the given number of characters, drawn alternately from T_local and from the forest.
+    private static int sample(Side tree, Side components, int m, int taxa, int samples, long seed) {
+        SplittableRandom random = new SplittableRandom(seed);
+        Scratch scratch = new Scratch(taxa);
+        int best = 0;
+        for (int s = 0; s < samples; s++) {
+            boolean fromTree = (s & 1) == 0 ? tree.canSample : !components.canSample;
+            Side sampled = fromTree ? tree : components;
+            Side other = fromTree ? components : tree;
+            if (!sampled.canSample) {
+                break;
+            }
+            int states = sampled.sample(random, scratch);
+            int convex = states - sampled.roots.length; // parsimony of a convex character: states - 1 per tree
+            int fitch = other.parsimony(scratch, states);
+            int lT = fromTree ? convex : fitch;
+            int lF = fromTree ? fitch : convex;
+            best = Math.max(best, Math.max(lF - lT, lT - lF - (m - 1)));
+            scratch.clear(sampled);
+        }
+        return best;
+    }
+
+    // Per-task buffers: the state of each taxon, the sampling stack and Fitch's state sets.
+    private static final class Scratch {
+        final int[] stateOf;
+        int[] stack = new int[48]; // (vnode, open size or 0 when done, state) triples
+        long[] sets = new long[64];
+
+        Scratch(int taxa) {
+            stateOf = new int[taxa];
+            Arrays.fill(stateOf, -1);
+        }
+
+        int push(int top, int vnode, int open, int state) {
+            if (top + 3 > stack.length) {
+                stack = Arrays.copyOf(stack, stack.length * 2);
+            }
+            stack[top] = vnode;
+            stack[top + 1] = open;
+            stack[top + 2] = state;
+            return top + 3;
+        }
+
+        void clear(Side side) {
+            for (int v = 0; v < side.size; v++) {
+                if (side.taxon[v] >= 0) {
+                    stateOf[side.taxon[v]] = -1;
+                }
+            }
+        }
+    }
+
+    /**
+     * The trees of one side as binary "vnodes" in postorder: each leaf is a vnode, and each internal node
+     * folds its items (children, and itself if it is a leaf) pairwise, which roots an unrooted tree on an
+     * edge next to its first node. Degree-2 nodes pass through. Built read-only before sampling starts.
+     */
+    private static final class Side {
+        final int k;
+        int size;
+        int[] left;
+        int[] right;
+        int[] taxon;     // -1 for an internal vnode
+        double[] counts; // per vnode: g, then h[1..k]
+        int[] roots;     // root vnode of each tree
+        int maxTaxon = -1;
+        boolean canSample = true;
+
+        private Side(int k, int capacity, int trees) {
+            this.k = k;
+            left = new int[capacity];
+            right = new int[capacity];
+            taxon = new int[capacity];
+            counts = new double[capacity * (k + 1)];
+            roots = new int[trees];
+        }
+
+        // Null if some tree is not a binary tree on its own nodes (the bound does not apply there).
+        static Side of(List<PhylogeneticTree> trees, int k) {
+            int capacity = 0;
+            for (PhylogeneticTree tree : trees) {
+                capacity += 2 * tree.nodes.size();
+            }
+            Side side = new Side(k, Math.max(1, capacity), trees.size());
+            for (int t = 0; t < trees.size(); t++) {
+                int root = side.addTree(trees.get(t));
+                if (root == -1) {
+                    return null;
+                }
+                side.roots[t] = root;
+                side.canSample &= side.counts[root * (k + 1)] > 0;
+            }
+            return side;
+        }
+
+        private int addTree(PhylogeneticTree tree) {
+            PathIndex index = PathIndex.of(tree);
+            int n = index.size();
+            if (!index.isExact() || n == 0) {
+                return -1;
+            }
+            int[] firstChild = new int[n];
+            int[] nextSibling = new int[n];
+            Arrays.fill(firstChild, -1);
+            for (int slot = n - 1; slot > 0; slot--) {
+                int parent = index.parent(slot);
+                if (parent == -1) {
+                    return -1; // more than one part
+                }
+                nextSibling[slot] = firstChild[parent];
+                firstChild[parent] = slot;
+            }
+            int[] vnodeOf = new int[n];
+            for (int slot = n - 1; slot >= 0; slot--) { // children before parents (preorder slots)
+                TreeNode node = index.node(slot);
+                int items = 0;
+                int vnode = -1;
+                if (node.isLeaf) {
+                    vnode = leaf(node.taxon);
+                    items++;
+                }
+                for (int child = firstChild[slot]; child != -1; child = nextSibling[child]) {
+                    vnode = vnode == -1 ? vnodeOf[child] : join(vnode, vnodeOf[child]);
+                    items++;
+                }
+                if (items > (slot == 0 ? 3 : 2) || vnode == -1) {
+                    return -1; // not binary, or an internal node without leaves below
+                }
+                vnodeOf[slot] = vnode;
+            }
+            return vnodeOf[0];
+        }
+
+        private int leaf(int taxonId) {
+            int v = size++;
+            left[v] = -1;
+            right[v] = -1;
+            taxon[v] = taxonId;
+            maxTaxon = Math.max(maxTaxon, taxonId);
+            int base = v * (k + 1);
+            counts[base] = k == 1 ? 1 : 0;
+            counts[base + 1] = 1;
+            return v;
+        }
+
+        // The counting DP of ConvexBound.count() for a vnode with children l and r.
+        private int join(int l, int r) {
+            int v = size++;
+            left[v] = l;
+            right[v] = r;
+            taxon[v] = -1;
+            int base = v * (k + 1);
+            double gL = g(l), gR = g(r);
+            double g = gL * gR;
+            for (int i = 1; i <= k; i++) {
+                for (int j = Math.max(1, k - i); j <= k; j++) {
+                    g += h(l, i) * h(r, j);
+                }
+            }
+            counts[base] = g;
+            for (int m = 1; m <= k; m++) {
+                double h = gL * h(r, m) + h(l, m) * gR;
+                if (m < k) {
+                    for (int i = 1; i < m; i++) {
+                        h += h(l, i) * h(r, m - i);
+                    }
+                } else {
+                    for (int i = 1; i <= k; i++) {
+                        for (int j = Math.max(1, k - i); j <= k; j++) {
+                            h += h(l, i) * h(r, j);
+                        }
+                    }
+                }
+                counts[base + m] = h;
+            }
+            double scale = 0;
+            for (int i = 0; i <= k; i++) {
+                scale = Math.max(scale, counts[base + i]);
+            }
+            if (scale > 0) {
+                for (int i = 0; i <= k; i++) {
+                    counts[base + i] /= scale;
+                }
+            }
+            return v;
+        }
+
+        private double g(int v) {
+            return counts[v * (k + 1)];
+        }
+
+        private double h(int v, int m) {
+            return counts[v * (k + 1) + m];
+        }
+
+        // Draws a character convex on every tree of this side into scratch.stateOf; returns its state count.
+        int sample(SplittableRandom random, Scratch scratch) {
+            int states = 0;
+            for (int root : roots) {
+                int top = scratch.push(0, root, 0, -1);
+                while (top > 0) {
+                    top -= 3;
+                    int v = scratch.stack[top];
+                    int open = scratch.stack[top + 1];
+                    int state = scratch.stack[top + 2];
+                    if (left[v] == -1) {
+                        scratch.stateOf[taxon[v]] = open == 0 ? states++ : state; // done only when k == 1
+                        continue;
+                    }
+                    int l = left[v], r = right[v];
+                    if (open == 0) {
+                        double pick = random.nextDouble() * closedWeight(l, r);
+                        pick -= g(l) * g(r);
+                        if (pick < 0) {
+                            top = scratch.push(top, l, 0, -1);
+                            top = scratch.push(top, r, 0, -1);
+                            continue;
+                        }
+                        int s = states++;
+                        int[] pair = pickPair(l, r, k, true, pick);
+                        top = scratch.push(top, l, pair[0], s);
+                        top = scratch.push(top, r, pair[1], s);
+                    } else {
+                        double pick = random.nextDouble() * openWeight(l, r, open);
+                        pick -= g(l) * h(r, open);
+                        if (pick < 0) {
+                            top = scratch.push(top, l, 0, -1);
+                            top = scratch.push(top, r, open, state);
+                            continue;
+                        }
+                        pick -= h(l, open) * g(r);
+                        if (pick < 0) {
+                            top = scratch.push(top, l, open, state);
+                            top = scratch.push(top, r, 0, -1);
+                            continue;
+                        }
+                        int[] pair = pickPair(l, r, open, open == k, pick);
+                        top = scratch.push(top, l, pair[0], state);
+                        top = scratch.push(top, r, pair[1], state);
+                    }
+                }
+            }
+            return states;
+        }
+
+        private double closedWeight(int l, int r) {
+            double weight = g(l) * g(r);
+            for (int i = 1; i <= k; i++) {
+                for (int j = Math.max(1, k - i); j <= k; j++) {
+                    weight += h(l, i) * h(r, j);
+                }
+            }
+            return weight;
+        }
+
+        private double openWeight(int l, int r, int m) {
+            double weight = g(l) * h(r, m) + h(l, m) * g(r);
+            if (m < k) {
+                for (int i = 1; i < m; i++) {
+                    weight += h(l, i) * h(r, m - i);
+                }
+            } else {
+                for (int i = 1; i <= k; i++) {
+                    for (int j = Math.max(1, k - i); j <= k; j++) {
+                        weight += h(l, i) * h(r, j);
+                    }
+                }
+            }
+            return weight;
+        }
+
+        // Open sizes (i, j) of the two children's root states that merge into one state of size m, or of at
+        // least m when atLeast. The last pair with any weight absorbs rounding left in pick.
+        private int[] pickPair(int l, int r, int m, boolean atLeast, double pick) {
+            int[] last = null;
+            for (int i = 1; i <= (atLeast ? k : m - 1); i++) {
+                int from = atLeast ? Math.max(1, m - i) : m - i;
+                int to = atLeast ? k : m - i;
+                for (int j = from; j <= to; j++) {
+                    double weight = h(l, i) * h(r, j);
+                    if (weight <= 0) {
+                        continue;
+                    }
+                    last = new int[] {i, j};
+                    pick -= weight;
+                    if (pick < 0) {
+                        return last;
+                    }
+                }
+            }
+            if (last == null) {
+                throw new IllegalStateException("Convex character sampling reached an option without characters");
+            }
+            return last;
+        }
+
+        // Fitch parsimony of the character in scratch.stateOf, summed over this side's trees. Taxa the
+        // character leaves out fit any state.
+        int parsimony(Scratch scratch, int states) {
+            int words = Math.max(1, (states + 63) >>> 6);
+            if (scratch.sets.length < size * words) {
+                scratch.sets = new long[size * words];
+            }
+            long[] sets = scratch.sets;
+            int score = 0;
+            for (int v = 0; v < size; v++) { // postorder: children were built first
+                int base = v * words;
+                if (left[v] == -1) {
+                    int state = scratch.stateOf[taxon[v]];
+                    if (state == -1) {
+                        Arrays.fill(sets, base, base + words, -1L);
+                    } else {
+                        Arrays.fill(sets, base, base + words, 0L);
+                        sets[base + (state >>> 6)] = 1L << state;
+                    }
+                    continue;
+                }
+                int l = left[v] * words, r = right[v] * words;
+                boolean meet = false;
+                for (int w = 0; w < words && !meet; w++) {
+                    meet = (sets[l + w] & sets[r + w]) != 0;
+                }
+                for (int w = 0; w < words; w++) {
+                    sets[base + w] = meet ? sets[l + w] & sets[r + w] : sets[l + w] | sets[r + w];
+                }
+                if (!meet) {
+                    score++;
+                }
+            }
+            return score;
+        }
+    }
+}
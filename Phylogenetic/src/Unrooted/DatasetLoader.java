@@ -0,0 +1,88 @@
+package Unrooted;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Predicate;
+
+// Loads every tree pair of a dataset directory, parsing the files in parallel.
+public class DatasetLoader {
+
+    private static final String EXTENSION = ".tree";
+
+    public static List<TreePair> load(String datasetDir) throws IOException {
+        return load(datasetDir, name -> true);
+    }
+
+    // Parse all *.tree files whose base name passes the filter. The result is sorted by name;
+    // files that fail to parse are reported on stderr and left out.
+    public static List<TreePair> load(String datasetDir, Predicate<String> nameFilter) throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(Paths.get(datasetDir), "*" + EXTENSION)) {
+            for (Path file : stream) {
+                if (nameFilter.test(baseName(file))) {
+                    files.add(file);
+                }
+            }
+        }
+        files.sort(Comparator.comparing(DatasetLoader::baseName));
+
+        int threads = Math.max(1, Math.min(files.size(), Runtime.getRuntime().availableProcessors()));
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<TreePair>> futures = new ArrayList<>();
+            for (Path file : files) {
+                futures.add(pool.submit(() -> loadPair(file)));
+            }
+
+            List<TreePair> pairs = new ArrayList<>();
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    pairs.add(futures.get(i).get());
+                } catch (ExecutionException e) {
+                    System.err.println("❌ Error loading file: " + files.get(i).getFileName());
+                    e.getCause().printStackTrace();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while loading " + datasetDir, e);
+                }
+            }
+            return pairs;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    public static TreePair loadPair(Path file) throws IOException {
+        Parser parser = new Parser();
+        List<PhylogeneticTree> trees = parser.parseFileWithTwoTrees(file.toString());
+        return new TreePair(baseName(file), trees.get(0), trees.get(1), parser.getTaxa());
+    }
+
+    // Names in the first column of a CSV with a header line, one per row in file order (repeats kept).
+    public static List<String> readNames(String csvPath) throws IOException {
+        List<String> names = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(csvPath))) {
+            String line = reader.readLine(); // skip header
+            while ((line = reader.readLine()) != null) {
+                names.add(line.split(",")[0].trim());
+            }
+        }
+        return names;
+    }
+
+    private static String baseName(Path file) {
+        String name = file.getFileName().toString();
+        return name.endsWith(EXTENSION) ? name.substring(0, name.length() - EXTENSION.length()) : name;
+    }
+}
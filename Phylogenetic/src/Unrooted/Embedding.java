@@ -0,0 +1,140 @@
+package Unrooted;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Embedding of a leaf set in a tree: the minimal subtree of the tree spanning the leaves whose taxon ids
+ * are in the set (the union of the paths between every two of them). Found in O(n) on the tree's
+ * PathIndex rooting: counting the set's leaves below every node, the edge above a node is used exactly
+ * when some but not all of its part's leaves lie below it. Leaves in different parts of the tree are
+ * never joined, and a part holding a single one of them contributes nothing (as with the old pairwise
+ * search, which found no path).
+ *
+ * Gives the original nodes and edges, a copy of the embedding, and its restriction (degree-2 nodes
+ * suppressed), built directly from the used edges without copying the embedding first. Slots refer to
+ * the index as built, so use an Embedding before the tree changes again.
+ */
+public final class Embedding {
+    private final PathIndex index;
+    private final boolean[] usedAbove; // slot -> the edge to its parent is in the embedding
+    private final int[] degree;        // slot -> number of embedding edges at the node
+    private final List<TreeNode> nodes = new ArrayList<>();
+    private final List<List<TreeNode>> edges = new ArrayList<>();
+
+    private Embedding(PathIndex index, long[] leafTaxa) {
+        this.index = index;
+        int size = index.size();
+        usedAbove = new boolean[size];
+        degree = new int[size];
+
+        int[] below = new int[size]; // leaves of the set in the subtree under each slot
+        for (int slot = 0; slot < size; slot++) {
+            TreeNode node = index.node(slot);
+            if (node.isLeaf && LeafBits.contains(leafTaxa, node.taxon)) {
+                below[slot] = 1;
+            }
+        }
+        for (int slot = size - 1; slot > 0; slot--) { // children before parents (preorder slots)
+            int parent = index.parent(slot);
+            if (parent != -1) {
+                below[parent] += below[slot];
+            }
+        }
+        for (int slot = 0; slot < size; slot++) {
+            int parent = index.parent(slot);
+            if (parent != -1 && below[slot] > 0 && below[slot] < below[index.root(slot)]) {
+                usedAbove[slot] = true;
+                degree[slot]++;
+                degree[parent]++;
+                edges.add(Arrays.asList(index.node(parent), index.node(slot)));
+            }
+        }
+        for (int slot = 0; slot < size; slot++) {
+            if (degree[slot] > 0) {
+                nodes.add(index.node(slot));
+            }
+        }
+    }
+
+    // The embedding of the leaves of T whose taxon ids are in leafTaxa.
+    public static Embedding of(PhylogeneticTree T, long[] leafTaxa) {
+        PathIndex index = PathIndex.of(T);
+        if (!index.isExact()) {
+            throw new IllegalStateException("Embedding needs a tree whose node list is a forest of its own nodes");
+        }
+        return new Embedding(index, leafTaxa);
+    }
+
+    // Nodes of the original tree in the embedding, parents before children. Do not modify.
+    public List<TreeNode> nodes() {
+        return nodes;
+    }
+
+    // Edges of the original tree in the embedding, each as (parent, child) under the index rooting,
+    // listed by child in node order. Do not modify.
+    public List<List<TreeNode>> edges() {
+        return edges;
+    }
+
+    // New tree copying the embedding node for node.
+    public PhylogeneticTree copy() {
+        NodeArena arena = NodeArena.get();
+        PhylogeneticTree copy = arena.tree();
+        TreeNode[] copies = new TreeNode[index.size()];
+        for (TreeNode original : nodes) {
+            copies[index.slot(original)] = copyNode(original, arena, copy);
+        }
+        for (List<TreeNode> edge : edges) {
+            copy.addEdge(copies[index.slot(edge.get(0))], copies[index.slot(edge.get(1))]);
+        }
+        return copy;
+    }
+
+    // New tree holding the restriction: the embedding with every internal node of degree 2 suppressed,
+    // i.e. what getEmbedding(leafTaxa).getRestriction() gave, without building the embedding first.
+    public PhylogeneticTree restriction() {
+        NodeArena arena = NodeArena.get();
+        PhylogeneticTree restricted = arena.tree();
+        TreeNode[] copies = new TreeNode[index.size()];
+        for (TreeNode original : nodes) {
+            int slot = index.slot(original);
+            if (kept(slot)) {
+                copies[slot] = copyNode(original, arena, restricted);
+            }
+        }
+        // Each kept node below the top climbs through suppressed nodes to the next kept one. The top of the
+        // embedding may itself be suppressed; the two chains that meet there are joined to each other.
+        TreeNode[] waiting = new TreeNode[index.size()];
+        for (TreeNode original : nodes) {
+            int slot = index.slot(original);
+            if (!kept(slot) || !usedAbove[slot]) {
+                continue;
+            }
+            int up = index.parent(slot);
+            while (!kept(up) && usedAbove[up]) {
+                up = index.parent(up);
+            }
+            if (kept(up)) {
+                restricted.addEdge(copies[up], copies[slot]);
+            } else if (waiting[up] == null) {
+                waiting[up] = copies[slot];
+            } else {
+                restricted.addEdge(waiting[up], copies[slot]);
+            }
+        }
+        return restricted;
+    }
+
+    private boolean kept(int slot) {
+        return degree[slot] != 2 || index.node(slot).isLeaf;
+    }
+
+    private static TreeNode copyNode(TreeNode original, NodeArena arena, PhylogeneticTree into) {
+        TreeNode copy = original.isLeaf ? original.copyLeaf(arena) : arena.node();
+        copy.isLeaf = original.isLeaf;
+        into.addNode(copy);
+        return copy;
+    }
+}
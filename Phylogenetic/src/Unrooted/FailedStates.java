@@ -0,0 +1,117 @@
+package Unrooted;
+
+import java.util.Arrays;
+
+/**
+ * Transposition table of search states known to fail: for each state (its Zobrist hash), the largest budget
+ * with which a search from it returned false. A failure with budget b also answers every budget up to b, so
+ * a solver that meets the state again with no more budget can return false at once, e.g. after cutting b
+ * then a instead of a then b.
+ *
+ * The table is bounded: it starts small, doubles while less than half full, and once at its limit evicts
+ * within a bucket of WAYS entries the one with the smallest budget, the cheapest failure to find again.
+ * Entries are trusted on their 64-bit hash alone; a false match is as unlikely as a random 64-bit collision.
+ */
+public final class FailedStates {
+    public static final int DEFAULT_LIMIT = 1 << 20; // entries; 12 bytes each
+    private static final int INITIAL_CAPACITY = 1 << 10;
+    private static final int WAYS = 4;
+    private static final int EMPTY = -1;
+
+    private final int limit;
+    private long[] keys;
+    private int[] budgets;
+    private int size;
+    private long hits;
+    private long evictions;
+
+    public FailedStates() {
+        this(DEFAULT_LIMIT);
+    }
+
+    public FailedStates(int limit) {
+        if (limit < WAYS) {
+            throw new IllegalArgumentException("Table limit must be at least " + WAYS + " entries");
+        }
+        this.limit = Integer.highestOneBit(limit);
+        keys = new long[Math.min(INITIAL_CAPACITY, this.limit)];
+        budgets = new int[keys.length];
+        Arrays.fill(budgets, EMPTY);
+    }
+
+    // Key of the current state; compute it before branching, while T_local and forest are as reduced.
+    public static long key(PhylogeneticTree T_local, Forest forest, boolean flag) {
+        return Zobrist.state(T_local, forest, flag);
+    }
+
+    // True if the state already failed with at least this budget.
+    public boolean hasFailed(long key, int budget) {
+        int bucket = bucketOf(key);
+        for (int i = bucket; i < bucket + WAYS; i++) {
+            if (budgets[i] != EMPTY && keys[i] == key) {
+                if (budgets[i] >= budget) {
+                    hits++;
+                    return true;
+                }
+                return false;
+            }
+        }
+        return false;
+    }
+
+    public void recordFailure(long key, int budget) {
+        if (size * 2 >= keys.length && keys.length < limit) {
+            grow();
+        }
+        int bucket = bucketOf(key);
+        int victim = -1;
+        for (int i = bucket; i < bucket + WAYS; i++) {
+            if (budgets[i] != EMPTY && keys[i] == key) {
+                budgets[i] = Math.max(budgets[i], budget);
+                return;
+            }
+            if (victim == -1 || budgets[i] < budgets[victim]) {
+                victim = i; // an empty entry (EMPTY is below every budget) or the cheapest one
+            }
+        }
+        if (budgets[victim] == EMPTY) {
+            size++;
+        } else {
+            evictions++;
+        }
+        keys[victim] = key;
+        budgets[victim] = budget;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // Searches answered from the table so far.
+    public long hits() {
+        return hits;
+    }
+
+    // Entries dropped to make room since the table reached its limit.
+    public long evictions() {
+        return evictions;
+    }
+
+    private int bucketOf(long key) {
+        return (int) (key >>> 32 ^ key) & (keys.length - WAYS);
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        int[] oldBudgets = budgets;
+        keys = new long[oldKeys.length * 2];
+        budgets = new int[oldKeys.length * 2];
+        Arrays.fill(budgets, EMPTY);
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldBudgets[i] != EMPTY) {
+                recordFailure(oldKeys[i], oldBudgets[i]);
+            }
+        }
+    }
+}
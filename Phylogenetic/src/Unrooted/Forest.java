@@ -3,58 +3,216 @@ package Unrooted;
 import java.util.*;
 
 public class Forest {
-    List<PhylogeneticTree> components;
+    List<PhylogeneticTree> components; // only change through addComponent/removeComponent & co.
+
+    // Membership index: taxon id -> component holding that leaf. Node -> component is TreeNode.owner.
+    PhylogeneticTree[] componentByTaxon = new PhylogeneticTree[0];
+    MutationLog log; // while set, every change to the forest is recorded so a solver can undo it
 
     public Forest() {
         components = new ArrayList<>();
     }
 
+    // Record all further changes to this forest and its current components in the given log (null to stop).
+    // Components created later by cuts inherit the log from the tree or forest they come from. Shared
+    // components are never changed in place, so they get the log only once writable() has copied them.
+    public void setLog(MutationLog log) {
+        this.log = log;
+        for (PhylogeneticTree tree : components) {
+            if (tree.sharers == 0) {
+                tree.setLog(log);
+            }
+        }
+    }
+
     public void addComponent(PhylogeneticTree tree) {
         components.add(tree);
+        if (log != null) log.addedComponent(this);
+        assignLeaves(tree, tree);
     }
 
     public void removeComponent(PhylogeneticTree tree) {
-        components.remove(tree);
+        dropComponent(tree);
+        assignLeaves(tree, null);
     }
-    
-    public void mergeEdge(TreeNode u, TreeNode v) {
-        PhylogeneticTree treeU = null;
-        PhylogeneticTree treeV = null;
-    
+
+    // Same result as components.removeAll(trees), one recorded removal at a time.
+    public void removeComponents(Collection<PhylogeneticTree> trees) {
+        for (int i = components.size() - 1; i >= 0; i--) {
+            if (trees.contains(components.get(i))) {
+                removeComponentAt(i);
+            }
+        }
+        for (PhylogeneticTree tree : trees) {
+            assignLeaves(tree, null);
+        }
+    }
+
+    // Take the tree out of the component list only; the caller fixes the membership index.
+    private void dropComponent(PhylogeneticTree tree) {
+        int index = components.indexOf(tree);
+        if (index != -1) {
+            removeComponentAt(index);
+        }
+    }
+
+    private void removeComponentAt(int index) {
+        PhylogeneticTree tree = components.remove(index);
+        if (log != null) log.removedComponent(this, tree, index);
+    }
+
+    // === COPY-ON-WRITE ===
+    // copyForest shares components by reference. Before a component is changed it must go through
+    // writable(): a component that another forest still holds is replaced, at the same position,
+    // by a private deep copy. Unchanged components are never copied.
+
+    public PhylogeneticTree writable(PhylogeneticTree tree) {
+        return writable(tree, null);
+    }
+
+    // As writable(tree); if a copy is made, nodeMap (when given) receives old node -> new node.
+    private PhylogeneticTree writable(PhylogeneticTree tree, Map<TreeNode, TreeNode> nodeMap) {
+        if (tree.sharers == 0) {
+            return tree;
+        }
+        int index = components.indexOf(tree);
+        if (index == -1) {
+            throw new IllegalArgumentException("Component is not part of this forest");
+        }
+        PhylogeneticTree copy = NodeArena.get().tree();
+        copy.setLog(log);
+        Map<TreeNode, TreeNode> map = tree.copyTreeWithMapping(copy);
+        if (nodeMap != null) {
+            nodeMap.putAll(map);
+        }
+        tree.unshare(log);
+        components.set(index, copy);
+        if (log != null) log.replacedComponent(this, index, tree);
+        assignLeaves(copy, copy);
+        return copy;
+    }
+
+    // Give up this forest's references to shared components, e.g. when a solver's working copy is done,
+    // so the forest it was copied from writes its components in place again.
+    public void release() {
         for (PhylogeneticTree tree : components) {
-            if (tree.nodes.contains(u)) treeU = tree;
-            if (tree.nodes.contains(v)) treeV = tree;
+            if (tree.sharers > 0) {
+                tree.unshare(log);
+            }
+        }
+        components = new ArrayList<>();
+        componentByTaxon = new PhylogeneticTree[0];
+    }
+
+    // Suppress degree-2 nodes in every component; shared components are only copied if they have one.
+    public boolean suppressDegree2Nodes() {
+        boolean changed = false;
+        for (PhylogeneticTree tree : components) {
+            if (tree.sharers > 0 && !tree.hasSuppressibleNode()) {
+                continue;
+            }
+            if (writable(tree).suppressDegree2Nodes()) {
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    // Component holding the given node, or null if it is in none.
+    public PhylogeneticTree componentOf(TreeNode node) {
+        return node.owner;
+    }
+
+    // Component holding the leaf with this taxon id, or null. O(1) while the index is current;
+    // if a component was edited behind the forest's back, falls back to a scan and repairs the entry.
+    public PhylogeneticTree componentOfLeaf(int taxon) {
+        PhylogeneticTree tree = taxon >= 0 && taxon < componentByTaxon.length ? componentByTaxon[taxon] : null;
+        if (tree != null) {
+            TreeNode leaf = tree.findLeaf(taxon);
+            if (leaf != null && leaf.owner == tree) {
+                return tree;
+            }
+        }
+        for (PhylogeneticTree candidate : components) {
+            if (candidate.findLeaf(taxon) != null) {
+                assign(taxon, candidate);
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    public boolean inSameComponent(int taxonA, int taxonB) {
+        PhylogeneticTree compA = componentOfLeaf(taxonA);
+        return compA != null && compA == componentOfLeaf(taxonB);
+    }
+
+    private void assignLeaves(PhylogeneticTree tree, PhylogeneticTree target) {
+        for (TreeNode node : tree.nodes) {
+            if (node.isLeaf && node.taxon >= 0) {
+                if (target != null) {
+                    assign(node.taxon, target);
+                } else if (node.taxon < componentByTaxon.length && componentByTaxon[node.taxon] == tree) {
+                    assign(node.taxon, null);
+                }
+            }
+        }
+    }
+
+    private void assign(int taxon, PhylogeneticTree tree) {
+        if (taxon >= componentByTaxon.length) {
+            if (log != null) log.replacedComponentIndex(this, componentByTaxon);
+            componentByTaxon = Arrays.copyOf(componentByTaxon, Math.max(taxon + 1, componentByTaxon.length * 2));
         }
+        if (log != null) log.changedSlot(componentByTaxon, taxon, componentByTaxon[taxon]);
+        componentByTaxon[taxon] = tree;
+    }
+    
+    public void mergeEdge(TreeNode u, TreeNode v) {
+        PhylogeneticTree treeU = componentOf(u);
+        PhylogeneticTree treeV = componentOf(v);
     
         if (treeU == null || treeV == null) {
             throw new RuntimeException("Cannot merge: node(s) not found in any component.");
         }
+
+        if (treeU.sharers > 0 || treeV.sharers > 0) {
+            Map<TreeNode, TreeNode> nodeMap = new HashMap<>();
+            writable(treeU, nodeMap);
+            if (treeV != treeU) {
+                writable(treeV, nodeMap);
+            }
+            u = nodeMap.getOrDefault(u, u);
+            v = nodeMap.getOrDefault(v, v);
+            treeU = componentOf(u);
+            treeV = componentOf(v);
+        }
     
         // Step 1: Add edge
-        u.neighbors.add(v);
-        v.neighbors.add(u);
+        treeU.addEdge(u, v);
     
         // Step 2: If u and v are in different components, merge them
         if (treeU != treeV) {
-            treeU.nodes.addAll(treeV.nodes);
-            components.remove(treeV);
+            dropComponent(treeV);
+            treeU.addNodes(treeV.nodes);
+            assignLeaves(treeV, treeU);
         }
     }
 
     public void cutEdgeInComponent(TreeNode n1, TreeNode n2) {
-        PhylogeneticTree targetTree = null;
-    
         // Step 1: Find the component containing both nodes
-        for (PhylogeneticTree tree : components) {
-            if (tree.nodes.contains(n1) && tree.nodes.contains(n2)) {
-                targetTree = tree;
-                break;
-            }
-        }
+        PhylogeneticTree targetTree = componentOf(n1);
     
-        if (targetTree == null) {
+        if (targetTree == null || componentOf(n2) != targetTree) {
             throw new RuntimeException("Cannot cut edge: nodes not found in the same component.");
         }
+
+        if (targetTree.sharers > 0) {
+            Map<TreeNode, TreeNode> nodeMap = new HashMap<>();
+            targetTree = writable(targetTree, nodeMap);
+            n1 = nodeMap.get(n1);
+            n2 = nodeMap.get(n2);
+        }
     
         // // Step 2: Cut the edge in that component
         // targetTree.cutEdge(n1, n2);
@@ -63,42 +221,38 @@ public class Forest {
         List<PhylogeneticTree> newTrees = targetTree.splitIntoTwo(n1, n2);
     
         // Step 4: Update the forest
-        removeComponent(targetTree);
-        components.addAll(newTrees);
+        dropComponent(targetTree);
+        for (PhylogeneticTree tree : newTrees) {
+            addComponent(tree);
+        }
     }
     
     
 
     //CUT OFF A LEAF
-    public void cutOff(String label) {
-        TreeNode leaf = null;
-        PhylogeneticTree sourceTree = null;
-    
+    public void cutOff(int taxon) {
         // Step 1: Locate the leaf node and the tree it belongs to
-        for (PhylogeneticTree tree : components) {
-            TreeNode candidate = TreeUtils.findLeafByLabel(tree, label);
-            if (candidate != null) {
-                leaf = candidate;
-                sourceTree = tree;
-                break;
-            }
+        PhylogeneticTree sourceTree = componentOfLeaf(taxon);
+        if (sourceTree != null) {
+            sourceTree = writable(sourceTree);
         }
+        TreeNode leaf = sourceTree != null ? sourceTree.findLeaf(taxon) : null;
     
         if (leaf == null || sourceTree == null) {
             printForest();
-            System.err.println("❌ Leaf with label '" + label + "' not found.");
+            System.err.println("❌ Leaf with taxon id " + taxon + " not found.");
             return;
         }
     
         if (!leaf.isLeaf) {
             printForest();
-            System.err.println("❌ Node '" + label + "' is not a leaf.");
+            System.err.println("❌ Node '" + leaf.getLabel() + "' is not a leaf.");
             return;
         }
     
         if (leaf.neighbors.size() != 1) {
             printForest();
-            System.err.println("❌ Leaf '" + label + "' does not have exactly one neighbor.");
+            System.err.println("❌ Leaf '" + leaf.getLabel() + "' does not have exactly one neighbor.");
             return;
         }
     
@@ -110,9 +264,10 @@ public class Forest {
         sourceTree.removeNode(leaf);
     
         // Step 4: Add the leaf as its own new tree in the forest
-        PhylogeneticTree singletonTree = new PhylogeneticTree();
+        PhylogeneticTree singletonTree = NodeArena.get().tree();
+        singletonTree.setLog(log);
         singletonTree.addNode(leaf);
-        components.add(singletonTree);
+        addComponent(singletonTree);
     
         // // Optional: clean up the source tree (e.g., suppress degree-2 nodes)
         // sourceTree.suppressDegree2Nodes();
@@ -131,18 +286,10 @@ public class Forest {
     public static TreeNode findEquivalentNode(Forest copyForest, Forest originalForest, TreeNode nodeOriginal) {
 
         // First, find which tree (component) in the original forest contains the original node
-        PhylogeneticTree originalComponent = null;
-        int componentIndex = -1;
-        for (int i = 0; i < originalForest.components.size(); i++) {
-            PhylogeneticTree tree = originalForest.components.get(i);
-            if (tree.nodes.contains(nodeOriginal)) {
-                originalComponent = tree;
-                componentIndex = i;
-                break;
-            }
-        }
+        PhylogeneticTree originalComponent = originalForest.componentOf(nodeOriginal);
+        int componentIndex = originalComponent != null ? originalForest.components.indexOf(originalComponent) : -1;
 
-        if (originalComponent == null) {
+        if (componentIndex == -1) {
             throw new RuntimeException("Node not found in original forest!");
         }
 
@@ -167,13 +314,13 @@ public class Forest {
         return copyComponent.nodes.get(nodeIndex);
     }
 
-    // Deep-copy a forest by copying every PhylogeneticTree.
+    // Copy a forest. Components are shared with this forest and copied lazily by writable().
     public Forest copyForest() {
         Forest original = this;
         Forest copy = new Forest();
         for (PhylogeneticTree tree : original.components) {
-            PhylogeneticTree treeCopy = tree.copyTree();
-            copy.addComponent(treeCopy);
+            tree.share(log);
+            copy.addComponent(tree);
         }
         return copy;
     }
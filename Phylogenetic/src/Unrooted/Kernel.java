@@ -0,0 +1,238 @@
+package Unrooted;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Kernel of a tree pair for the unrooted agreement-forest (TBR) distance, built by the two reductions of
+ * Allen and Steel until neither applies:
+ * - common subtrees: a pendant subtree common to both trees becomes one leaf standing for all its taxa
+ *   (common cherries collapsed one at a time, as the solvers' own reduction does);
+ * - common chains: pendant leaves l1..lm hanging in this order off distinct nodes of a path in both trees
+ *   are cut back to l1, l2, l3. An end node of the path may also carry a leaf outside the chain (l1 or lm
+ *   is then in a cherry), but both leaves of a cherry never belong to one chain: a chain closed by a cherry
+ *   in one tree and open in the other does not keep the distance.
+ * Both keep the distance, and the kernel has O(k) taxa however many the input has, so a solver given
+ * first and second works on an instance bounded by the parameter.
+ *
+ * A solution on the kernel (taxon sets, e.g. getSolution()) maps back with expand(): a chain's removed
+ * taxa join the block holding its three kept leaves. When a solution splits those three, the removed taxa
+ * have no single place and expand() returns null; the caller then solves the kernel built without chain
+ * reductions, whose solutions always map back.
+ */
+public final class Kernel {
+    public static final int CHAIN_LENGTH = 3; // a common chain keeps this many leaves
+
+    public final PhylogeneticTree first;
+    public final PhylogeneticTree second;
+    private final List<int[]> chainKept = new ArrayList<>(); // per shortened chain: a taxon of each kept leaf
+    private final List<int[]> chainRemoved = new ArrayList<>(); // per shortened chain: the taxa removed
+    private final boolean chains;
+
+    // Reduces copies of T1 and T2; the inputs are not changed. Trees on different taxa are kept as they are.
+    public Kernel(PhylogeneticTree T1, PhylogeneticTree T2) {
+        this(T1, T2, true);
+    }
+
+    // As above; without chains only common subtrees are reduced, and expand() never returns null.
+    public Kernel(PhylogeneticTree T1, PhylogeneticTree T2, boolean chains) {
+        this.chains = chains;
+        first = T1.copyTree();
+        second = T2.copyTree();
+        long[] leaves = first.getLeafBits();
+        if (LeafBits.isSubset(leaves, second.getLeafBits()) && LeafBits.isSubset(second.getLeafBits(), leaves)) {
+            reduce();
+        }
+    }
+
+    // Number of chains shortened to CHAIN_LENGTH leaves.
+    public int chainsShortened() {
+        return chainKept.size();
+    }
+
+    // The solution's blocks over the original taxa, or null if a shortened chain's kept leaves are split.
+    public List<int[]> expand(List<int[]> blocks) {
+        List<int[]> expanded = new ArrayList<>(blocks);
+        for (int c = chainKept.size() - 1; c >= 0; c--) { // later chains may have removed earlier ones' leaves
+            int[] kept = chainKept.get(c);
+            int block = blockOf(expanded, kept[0]);
+            for (int taxon : kept) {
+                if (block == -1 || blockOf(expanded, taxon) != block) {
+                    return null;
+                }
+            }
+            expanded.set(block, TreeUtils.unionTaxa(expanded.get(block), chainRemoved.get(c)));
+        }
+        return expanded;
+    }
+
+    private static int blockOf(List<int[]> blocks, int taxon) {
+        for (int i = 0; i < blocks.size(); i++) {
+            if (Arrays.binarySearch(blocks.get(i), taxon) >= 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void reduce() {
+        Forest forest = new Forest();
+        forest.addComponent(second);
+        while (true) {
+            boolean suppressed = first.suppressDegree2Nodes() | second.suppressDegree2Nodes();
+            boolean subtrees = TreeUtils.findAndReduceCommonCherries(forest, first);
+            boolean shortened = chains && !subtrees && shortenCommonChains();
+            if (!(suppressed || subtrees || shortened)) {
+                break;
+            }
+        }
+    }
+
+    // Shortens every common chain longer than CHAIN_LENGTH; true if any was.
+    private boolean shortenCommonChains() {
+        List<List<TreeNode>> chains = new ArrayList<>();
+        long epoch = Traversal.newEpoch();
+        for (TreeNode node : first.nodes) {
+            if (pendantLeaf(node) != null && !Traversal.isMarked(node, epoch)) {
+                chains.addAll(commonRuns(chainThrough(node, epoch)));
+            }
+        }
+        for (List<TreeNode> chain : chains) {
+            int[] kept = new int[CHAIN_LENGTH];
+            int[] removed = new int[0];
+            for (int i = 0; i < chain.size(); i++) {
+                TreeNode leaf = chain.get(i);
+                if (i < CHAIN_LENGTH) {
+                    kept[i] = leaf.taxon;
+                } else {
+                    removed = TreeUtils.unionTaxa(removed, leaf.taxa);
+                }
+            }
+            for (int i = CHAIN_LENGTH; i < chain.size(); i++) {
+                int taxon = chain.get(i).taxon;
+                TreeUtils.removeLeafFromTree(first, taxon);
+                TreeUtils.removeLeafFromTree(second, taxon);
+            }
+            chainKept.add(kept);
+            chainRemoved.add(removed);
+        }
+        return !chains.isEmpty();
+    }
+
+    // Leaves, in path order, of the maximal chain of first through node (a node with one pendant leaf),
+    // with both leaves of a cherry that ends it (at most one of them joins a run); its nodes are left marked.
+    private static List<TreeNode> chainThrough(TreeNode node, long epoch) {
+        Traversal.mark(node, epoch);
+        List<TreeNode> before = new ArrayList<>();
+        List<TreeNode> after = new ArrayList<>();
+        boolean forward = true;
+        for (TreeNode start : node.neighbors) {
+            if (start.isLeaf) {
+                continue;
+            }
+            List<TreeNode> side = forward ? after : before;
+            forward = false;
+            TreeNode previous = node;
+            TreeNode current = start;
+            while (pendantLeaf(current) != null && !Traversal.isMarked(current, epoch)) {
+                Traversal.mark(current, epoch);
+                side.add(pendantLeaf(current));
+                TreeNode next = null;
+                for (TreeNode neighbor : current.neighbors) {
+                    if (!neighbor.isLeaf && neighbor != previous) {
+                        next = neighbor;
+                    }
+                }
+                previous = current;
+                current = next;
+            }
+            TreeNode[] cherry = cherryLeaves(current);
+            if (cherry != null && !Traversal.isMarked(current, epoch)) {
+                Traversal.mark(current, epoch);
+                side.add(cherry[0]);
+                side.add(cherry[1]);
+            }
+        }
+        List<TreeNode> leaves = new ArrayList<>();
+        for (int i = before.size() - 1; i >= 0; i--) {
+            leaves.add(before.get(i));
+        }
+        leaves.add(pendantLeaf(node));
+        leaves.addAll(after);
+        return leaves;
+    }
+
+    // Maximal runs of more than CHAIN_LENGTH leaves of a chain of first that also form a chain of second:
+    // in both trees their parents are distinct adjacent nodes, each with one pendant leaf or, at the ends of
+    // the run, a cherry.
+    private List<List<TreeNode>> commonRuns(List<TreeNode> chain) {
+        List<List<TreeNode>> runs = new ArrayList<>();
+        List<TreeNode> run = new ArrayList<>();
+        List<TreeNode> parents = new ArrayList<>(); // in second, one per leaf of the run
+        for (TreeNode leaf : chain) {
+            TreeNode other = second.findLeaf(leaf.taxon);
+            TreeNode parent = other != null && other.neighbors.size() == 1 ? other.neighbors.get(0) : null;
+            if (parent == null || (pendantLeaf(parent) == null && cherryLeaves(parent) == null)) {
+                addRun(runs, run);
+                run = new ArrayList<>();
+                parents = new ArrayList<>();
+                continue;
+            }
+            boolean extend = !run.isEmpty()
+                    && leaf.neighbors.get(0) != run.get(run.size() - 1).neighbors.get(0) // not a cherry of first
+                    && parent.neighbors.contains(parents.get(parents.size() - 1))
+                    && !parents.contains(parent); // a path, so a cherry of second is only ever at an end
+            if (!extend) {
+                addRun(runs, run);
+                run = new ArrayList<>();
+                parents = new ArrayList<>();
+            }
+            run.add(leaf);
+            parents.add(parent);
+        }
+        addRun(runs, run);
+        return runs;
+    }
+
+    private static void addRun(List<List<TreeNode>> runs, List<TreeNode> run) {
+        if (run.size() > CHAIN_LENGTH) {
+            runs.add(run);
+        }
+    }
+
+    // The one leaf hanging off an internal node of degree 3 with exactly one leaf neighbour, else null.
+    private static TreeNode pendantLeaf(TreeNode node) {
+        if (node == null || node.isLeaf || node.neighbors.size() != 3) {
+            return null;
+        }
+        TreeNode leaf = null;
+        for (TreeNode neighbor : node.neighbors) {
+            if (neighbor.isLeaf) {
+                if (leaf != null) {
+                    return null;
+                }
+                leaf = neighbor;
+            }
+        }
+        return leaf;
+    }
+
+    // The two leaves of a cherry hanging off an internal node of degree 3 (the third neighbour internal), else null.
+    private static TreeNode[] cherryLeaves(TreeNode node) {
+        if (node == null || node.isLeaf || node.neighbors.size() != 3) {
+            return null;
+        }
+        TreeNode[] leaves = new TreeNode[2];
+        int count = 0;
+        for (TreeNode neighbor : node.neighbors) {
+            if (neighbor.isLeaf) {
+                if (count == 2) {
+                    return null;
+                }
+                leaves[count++] = neighbor;
+            }
+        }
+        return count == 2 ? leaves : null;
+    }
+}
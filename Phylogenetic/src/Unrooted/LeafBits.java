@@ -0,0 +1,68 @@
+package Unrooted;
+
+import java.util.Arrays;
+
+/**
+ * Leaf sets as bitsets over taxon ids: taxon t is in the set when bit (t & 63) of word t >>> 6 is set.
+ * Arrays may differ in length; missing words count as zero. Membership, subset, disjointness and
+ * overlap tests are word-wise, so they cost one pass over ceil(taxa / 64) longs.
+ */
+public final class LeafBits {
+    static final long[] EMPTY = new long[0];
+
+    private LeafBits() {
+    }
+
+    public static boolean contains(long[] bits, int taxon) {
+        int word = taxon >>> 6;
+        return taxon >= 0 && word < bits.length && (bits[word] & (1L << taxon)) != 0;
+    }
+
+    // Adds the taxon and returns the (possibly grown) array.
+    public static long[] add(long[] bits, int taxon) {
+        int word = taxon >>> 6;
+        if (word >= bits.length) {
+            bits = Arrays.copyOf(bits, Math.max(word + 1, bits.length * 2));
+        }
+        bits[word] |= 1L << taxon;
+        return bits;
+    }
+
+    public static boolean intersects(long[] a, long[] b) {
+        int n = Math.min(a.length, b.length);
+        for (int i = 0; i < n; i++) {
+            if ((a[i] & b[i]) != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // a ⊆ b
+    public static boolean isSubset(long[] a, long[] b) {
+        for (int i = 0; i < a.length; i++) {
+            long outside = i < b.length ? a[i] & ~b[i] : a[i];
+            if (outside != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static boolean isEmpty(long[] bits) {
+        for (long word : bits) {
+            if (word != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static int cardinality(long[] bits) {
+        int count = 0;
+        for (long word : bits) {
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+}
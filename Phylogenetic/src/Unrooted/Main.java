@@ -1,11 +1,12 @@
 package Unrooted;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
-import java.util.ArrayList;
-import java.util.Arrays;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 public class Main {
@@ -43,56 +44,87 @@ public class Main {
         String datasetDir = "DataCode_11_dec_2020/maindataset"; // <- Source of the tree datasets
         String csvPath = "DataCode_11_dec_2020/names.csv"; // <- Path for the names of the trees that you want to be read
     
-        BufferedReader reader = new BufferedReader(new FileReader(csvPath));
-        String line;
-        boolean isFirstLine = true;
-        
-        while ((line = reader.readLine()) != null) {
-            if (isFirstLine) {
-                isFirstLine = false;
-                continue; // skip header
+        // Parse every listed pair up front, in parallel, then solve them in CSV order, once per row.
+        // A binary archive written by TreePairArchive can be used instead of the directory.
+        List<String> names = DatasetLoader.readNames(csvPath);
+        Set<String> listed = new HashSet<>(names);
+        List<TreePair> loaded = datasetDir.endsWith(TreePairArchive.EXTENSION)
+                ? TreePairArchive.open(datasetDir).loadAll()
+                : DatasetLoader.load(datasetDir, listed::contains);
+        Map<String, TreePair> pairs = new HashMap<>();
+        for (TreePair pair : loaded) {
+            pairs.put(pair.name, pair);
+        }
+
+        long[] gcBefore = gcSnapshot();
+        long start = System.nanoTime();
+        for (String name : names) {
+            TreePair pair = pairs.get(name);
+            String fileName = name + ".tree";
+            if (pair == null) {
+                System.err.println("❌ Error processing file: " + fileName); // no such file, or it failed to load
+                continue;
             }
-    
-            String[] parts = line.split(",");
-            String fileName = parts[0].trim() + ".tree";
-            String fullPath = datasetDir + "/" + fileName;
-            
+
             try {
-                Parser parser = new Parser();
-                List<PhylogeneticTree> trees = parser.parseFileWithTwoTrees(fullPath);
-                PhylogeneticTree tree1 = trees.get(0).copyTree();
-                PhylogeneticTree tree2 = trees.get(1).copyTree();
-
-                int k = 1;
-                while (true) {
-                    SplitOrDecompose splitOrDecompose = new SplitOrDecompose(tree1.copyTree(), tree2.copyTree());
-                    ChenAlgorithm chen = new ChenAlgorithm(tree1.copyTree(), tree2.copyTree());
-                    boolean s = splitOrDecompose.solve(k);
-                    boolean c = chen.solve(k);
-                    if(splitOrDecompose.recursionCounter > 3000000){
-                        break;
-                    }
-                    if (s && c) {
-                        System.out.println(k + " " + fileName);
-                        //Different print statements for differen experimental purposes
-                        //System.out.println(k + " " + splitOrDecompose.recursionCounter + " " + chen.recursionCounter);
-                        //System.out.println(k + " " + splitOrDecompose.recursionCounter +  " " + splitOrDecompose.splitCounter + "  " + splitOrDecompose.splitFunctioned + " " + splitOrDecompose.decompositionCounter + " " + splitOrDecompose.decompositionFunctioned + " " + chen.recursionCounter + " " +taxaCount);
-                       // System.out.println(chen.recursionCounter + " " + chen.splitCounter + " " + k);
-                        break;
-                    }
-                    else if((s && !c) || (!s && c)){
-                    }
-                    k++;
-                    if (k > 30) {
-                        System.out.println(fileName + " -> no solution up to k=30");
-                        break;
-                    }
+                PhylogeneticTree tree1 = pair.tree1;
+                PhylogeneticTree tree2 = pair.tree2;
+
+                // Common subtrees and chains are reduced once, before either solver; the distance is unchanged.
+                Kernel kernel = new Kernel(tree1, tree2);
+                tree1 = kernel.first;
+                tree2 = kernel.second;
+
+                // One call per solver; each reuses its reduced instance and failed states across k = 0..30.
+                SplitOrDecompose splitOrDecompose = new SplitOrDecompose(tree1.copyTree(), tree2.copyTree());
+                int s = splitOrDecompose.solveMinimum(30, 3000000);
+                if (splitOrDecompose.gaveUp()) {
+                    continue; // gave up on this pair, as before
+                }
+                ChenAlgorithm chen = new ChenAlgorithm(tree1.copyTree(), tree2.copyTree());
+                int c = chen.solveMinimum(30);
+                if (s >= 0 && c >= 0) {
+                    System.out.println(Math.max(s, c) + " " + fileName);
+                    //Different print statements for differen experimental purposes
+                    //System.out.println(k + " " + splitOrDecompose.recursionCounter + " " + chen.recursionCounter);
+                    //System.out.println(chen.getSolutionLabels());
+                } else {
+                    System.out.println(fileName + " -> no solution up to k=30");
                 }
             } catch (Exception e) {
                 System.err.println("❌ Error processing file: " + fileName);
                 e.printStackTrace();
             }
         }
-        reader.close();
+        printGcReport(gcBefore, System.nanoTime() - start);
+    }
+
+    // {collections, collection time in ms, bytes allocated by this thread (-1 if the JVM cannot tell)}
+    private static long[] gcSnapshot() {
+        long count = 0;
+        long time = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+            time += Math.max(0, gc.getCollectionTime());
+        }
+        long allocated = -1;
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            allocated = ((com.sun.management.ThreadMXBean) threads).getCurrentThreadAllocatedBytes();
+        }
+        return new long[] {count, time, allocated};
+    }
+
+    // GC activity and allocation rate of the solving loop, on stderr so the results stay clean.
+    private static void printGcReport(long[] before, long elapsedNanos) {
+        long[] after = gcSnapshot();
+        long millis = Math.max(1, elapsedNanos / 1_000_000);
+        String report = "GC: " + (after[0] - before[0]) + " collections, " + (after[1] - before[1]) + " ms in " + millis + " ms";
+        if (before[2] >= 0 && after[2] >= 0) {
+            long megabytes = (after[2] - before[2]) >> 20;
+            report += "; allocated " + megabytes + " MB (" + megabytes * 1000 / millis + " MB/s)";
+        }
+        report += "; arena holds " + NodeArena.get().nodesPooled() + " nodes";
+        System.err.println(report);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,247 @@
+package Unrooted;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Undo trail for in-place backtracking. While a log is attached, PhylogeneticTree and Forest record every
+ * primitive change they make (node list, neighbour list, owner, leaf/component/cherry index and component
+ * list edits). A branch takes mark(), mutates the shared tree and forest, and undo(mark) replays the records
+ * backwards, restoring exactly the state at the mark, list positions included. Records are kept in parallel arrays.
+ * Inside an open NodeArena scope a mark also remembers the arena's top, and undo(mark) hands every node
+ * and tree taken since then back to the arena.
+ */
+public class MutationLog {
+    private static final int ADD_NODE = 0;            // tree: node appended
+    private static final int REMOVE_NODE = 1;         // tree, node, index
+    private static final int ADD_NEIGHBOR = 2;        // node: neighbour appended
+    private static final int REMOVE_NEIGHBOR = 3;     // node, neighbour, index
+    private static final int SET_NEIGHBORS = 4;       // node, previous neighbour list
+    private static final int SET_OWNER = 5;           // node, previous owner, previous order stamp
+    private static final int SET_SLOT = 6;            // array, index, previous value
+    private static final int SET_LEAF_INDEX = 7;      // tree, previous leafIndex array
+    private static final int ADD_COMPONENT = 8;       // forest: component appended
+    private static final int REMOVE_COMPONENT = 9;    // forest, component, index
+    private static final int SET_COMPONENT_INDEX = 10; // forest, previous componentByTaxon array
+    private static final int SET_COMPONENT = 11;      // forest, previous component, index
+    private static final int SET_SHARERS = 12;        // tree, previous share count
+    private static final int FLIP_LEAF = 13;          // tree, taxon whose leaf bit and hash term were flipped
+    private static final int SET_LEAF_BITS = 14;      // tree, previous leafBits array
+    private static final int ARENA_NODES = 15;        // arena, node top at the mark
+    private static final int ARENA_TREES = 16;        // arena, tree top at the mark
+    private static final int TOGGLE_CHERRY = 17;      // tree, node added to or removed from its cherry index
+    private static final int SET_CHERRY_INDEX = 18;   // tree whose cherry index was built
+
+    private int size;
+    private int[] ops = new int[256];
+    private int[] positions = new int[256];
+    private Object[] targets = new Object[256];
+    private Object[] values = new Object[256];
+
+    public int mark() {
+        int mark = size;
+        NodeArena arena = NodeArena.get();
+        if (arena.isOpen()) {
+            long top = arena.mark();
+            push(ARENA_NODES, arena, null, (int) top);
+            push(ARENA_TREES, arena, null, (int) (top >>> 32));
+        }
+        return mark;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // Forget all records without replaying them, e.g. once the structures they refer to are discarded.
+    public void clear() {
+        Arrays.fill(targets, 0, size, null);
+        Arrays.fill(values, 0, size, null);
+        size = 0;
+    }
+
+    // Roll every change made since the mark back, newest first.
+    @SuppressWarnings("unchecked")
+    public void undo(int mark) {
+        // The arena records stay, so the same mark can be undone again after the next branch.
+        boolean arenaMark = mark < size && ops[mark] == ARENA_NODES;
+        int keep = arenaMark ? mark + 2 : mark;
+        while (size > keep) {
+            size--;
+            Object target = targets[size];
+            Object value = values[size];
+            int position = positions[size];
+            targets[size] = null;
+            values[size] = null;
+
+            switch (ops[size]) {
+                case ADD_NODE:
+                    removeLast(((PhylogeneticTree) target).nodes);
+                    ((PhylogeneticTree) target).structure++;
+                    break;
+                case REMOVE_NODE:
+                    ((PhylogeneticTree) target).nodes.add(position, (TreeNode) value);
+                    ((PhylogeneticTree) target).structure++;
+                    break;
+                case ADD_NEIGHBOR:
+                    removeLast(((TreeNode) target).neighbors);
+                    PhylogeneticTree.changedStructure(((TreeNode) target).owner);
+                    break;
+                case REMOVE_NEIGHBOR:
+                    ((TreeNode) target).neighbors.add(position, (TreeNode) value);
+                    PhylogeneticTree.changedStructure(((TreeNode) target).owner);
+                    break;
+                case SET_NEIGHBORS:
+                    ((TreeNode) target).neighbors = (List<TreeNode>) value;
+                    PhylogeneticTree.changedStructure(((TreeNode) target).owner);
+                    break;
+                case SET_OWNER:
+                    PhylogeneticTree.changedStructure(((TreeNode) target).owner);
+                    ((TreeNode) target).owner = (PhylogeneticTree) value;
+                    ((TreeNode) target).order = position;
+                    PhylogeneticTree.changedStructure((PhylogeneticTree) value);
+                    break;
+                case SET_SLOT:
+                    ((Object[]) target)[position] = value;
+                    break;
+                case SET_LEAF_INDEX:
+                    ((PhylogeneticTree) target).leafIndex = (TreeNode[]) value;
+                    break;
+                case ADD_COMPONENT:
+                    removeLast(((Forest) target).components);
+                    break;
+                case REMOVE_COMPONENT:
+                    ((Forest) target).components.add(position, (PhylogeneticTree) value);
+                    break;
+                case SET_COMPONENT_INDEX:
+                    ((Forest) target).componentByTaxon = (PhylogeneticTree[]) value;
+                    break;
+                case SET_COMPONENT:
+                    ((Forest) target).components.set(position, (PhylogeneticTree) value);
+                    break;
+                case SET_SHARERS:
+                    ((PhylogeneticTree) target).sharers = position;
+                    break;
+                case FLIP_LEAF:
+                    ((PhylogeneticTree) target).flipLeaf(position);
+                    break;
+                case SET_LEAF_BITS:
+                    ((PhylogeneticTree) target).leafBits = (long[]) value;
+                    break;
+                case TOGGLE_CHERRY: {
+                    TreeSet<TreeNode> cherryNodes = ((PhylogeneticTree) target).cherryNodes;
+                    if (!cherryNodes.remove(value)) {
+                        cherryNodes.add((TreeNode) value);
+                    }
+                    break;
+                }
+                case SET_CHERRY_INDEX:
+                    ((PhylogeneticTree) target).cherryNodes = null;
+                    break;
+                case ARENA_NODES:
+                    ((NodeArena) target).releaseNodes(position);
+                    break;
+                case ARENA_TREES:
+                    ((NodeArena) target).releaseTrees(position);
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown mutation record " + ops[size]);
+            }
+        }
+        if (arenaMark) {
+            NodeArena arena = (NodeArena) targets[mark];
+            arena.releaseNodes(positions[mark]);
+            arena.releaseTrees(positions[mark + 1]);
+        }
+    }
+
+    // === RECORDING ===
+
+    void addedNode(PhylogeneticTree tree) {
+        push(ADD_NODE, tree, null, 0);
+    }
+
+    void removedNode(PhylogeneticTree tree, TreeNode node, int index) {
+        push(REMOVE_NODE, tree, node, index);
+    }
+
+    void addedNeighbor(TreeNode node) {
+        push(ADD_NEIGHBOR, node, null, 0);
+    }
+
+    void removedNeighbor(TreeNode node, TreeNode neighbor, int index) {
+        push(REMOVE_NEIGHBOR, node, neighbor, index);
+    }
+
+    void replacedNeighbors(TreeNode node, List<TreeNode> previous) {
+        push(SET_NEIGHBORS, node, previous, 0);
+    }
+
+    void changedOwner(TreeNode node, PhylogeneticTree previous, int previousOrder) {
+        push(SET_OWNER, node, previous, previousOrder);
+    }
+
+    void changedSlot(Object[] array, int index, Object previous) {
+        push(SET_SLOT, array, previous, index);
+    }
+
+    void replacedLeafIndex(PhylogeneticTree tree, TreeNode[] previous) {
+        push(SET_LEAF_INDEX, tree, previous, 0);
+    }
+
+    void addedComponent(Forest forest) {
+        push(ADD_COMPONENT, forest, null, 0);
+    }
+
+    void removedComponent(Forest forest, PhylogeneticTree tree, int index) {
+        push(REMOVE_COMPONENT, forest, tree, index);
+    }
+
+    void replacedComponentIndex(Forest forest, PhylogeneticTree[] previous) {
+        push(SET_COMPONENT_INDEX, forest, previous, 0);
+    }
+
+    void replacedComponent(Forest forest, int index, PhylogeneticTree previous) {
+        push(SET_COMPONENT, forest, previous, index);
+    }
+
+    void changedSharers(PhylogeneticTree tree, int previous) {
+        push(SET_SHARERS, tree, null, previous);
+    }
+
+    void flippedLeaf(PhylogeneticTree tree, int taxon) {
+        push(FLIP_LEAF, tree, null, taxon);
+    }
+
+    void replacedLeafBits(PhylogeneticTree tree, long[] previous) {
+        push(SET_LEAF_BITS, tree, previous, 0);
+    }
+
+    void toggledCherry(PhylogeneticTree tree, TreeNode node) {
+        push(TOGGLE_CHERRY, tree, node, 0);
+    }
+
+    void builtCherryIndex(PhylogeneticTree tree) {
+        push(SET_CHERRY_INDEX, tree, null, 0);
+    }
+
+    private void push(int op, Object target, Object value, int position) {
+        if (size == ops.length) {
+            int capacity = size * 2;
+            ops = Arrays.copyOf(ops, capacity);
+            positions = Arrays.copyOf(positions, capacity);
+            targets = Arrays.copyOf(targets, capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+        ops[size] = op;
+        positions[size] = position;
+        targets[size] = target;
+        values[size] = value;
+        size++;
+    }
+
+    private static void removeLast(List<?> list) {
+        list.remove(list.size() - 1);
+    }
+}
@@ -0,0 +1,213 @@
+package Unrooted;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Single-pass Newick reader working directly on a ByteBuffer (usually a memory-mapped file).
+ * Trees are emitted one at a time by next(), so a file may hold any number of them.
+ * Branch lengths, internal node labels/support values, [comments] and 'quoted labels' are accepted;
+ * only leaf labels are kept, each one is turned into a String exactly once and interned into the
+ * TaxonTable, so leaves with the same label get the same taxon id in every tree read with that table.
+ */
+public class NewickReader {
+    private final ByteBuffer buffer;
+    private final TaxonTable taxa;
+
+    // Reusable scratch space: open internal nodes and the bytes of the label being read
+    private TreeNode[] stack = new TreeNode[64];
+    private byte[] label = new byte[32];
+
+    public NewickReader(ByteBuffer buffer, TaxonTable taxa) {
+        this.buffer = buffer;
+        this.taxa = taxa;
+    }
+
+    // Map the whole file read-only; the mapping stays valid after the channel is closed.
+    public static NewickReader open(Path path, TaxonTable taxa) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Newick file too large to map: " + path);
+            }
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            return new NewickReader(mapped, taxa);
+        }
+    }
+
+    public static NewickReader of(String newick, TaxonTable taxa) {
+        return new NewickReader(ByteBuffer.wrap(newick.getBytes(StandardCharsets.UTF_8)), taxa);
+    }
+
+    // Returns the next tree in the buffer, or null once the input is exhausted.
+    public PhylogeneticTree next() {
+        PhylogeneticTree tree = new PhylogeneticTree();
+        TreeNode current = null;
+        int depth = 0;
+        int labelLength = 0;
+        boolean started = false;
+        boolean afterClose = false; // the label that follows ')' belongs to an internal node and is skipped
+
+        while (buffer.hasRemaining()) {
+            byte ch = buffer.get();
+            switch (ch) {
+                case '(':
+                    if (depth == 0 && started) {
+                        throw new IllegalArgumentException("More than one top-level element in a Newick tree");
+                    }
+                    push(depth++, current);
+                    current = new TreeNode(); // create new internal node
+                    tree.addNode(current);
+                    started = true;
+                    afterClose = false;
+                    break;
+                case ',':
+                case ')':
+                    if (depth == 0) {
+                        throw new IllegalArgumentException(ch == ','
+                                ? "More than one top-level element in a Newick tree"
+                                : "Unbalanced ')' in Newick input");
+                    }
+                    if (labelLength > 0) {
+                        TreeNode leaf = createLeaf(labelLength, tree);
+                        if (current != null) {
+                            tree.addEdge(current, leaf);
+                        }
+                        labelLength = 0;
+                    }
+                    afterClose = false;
+                    if (ch == ')') {
+                        TreeNode child = current;
+                        current = stack[--depth];
+                        stack[depth] = null;
+                        if (current != null) {
+                            tree.addEdge(current, child);
+                        } else {
+                            current = child; // this was the root
+                        }
+                        afterClose = true;
+                    }
+                    break;
+                case ';':
+                    if (!started) {
+                        break; // stray ';' between trees
+                    }
+                    if (depth != 0) {
+                        throw new IllegalArgumentException("Unbalanced '(' in Newick input");
+                    }
+                    if (labelLength > 0 && current == null) {
+                        createLeaf(labelLength, tree); // single-leaf tree
+                    }
+                    return tree;
+                case ':':
+                    skipBranchLength();
+                    break;
+                case '[':
+                    skipComment();
+                    break;
+                case '\'':
+                    if (afterClose) {
+                        readQuoted(0);
+                    } else {
+                        labelLength = readQuoted(labelLength);
+                    }
+                    started = true;
+                    break;
+                case '\n':
+                case '\r':
+                    // A newline after a complete tree also ends it (files without ';')
+                    if (started && depth == 0 && (current != null || labelLength > 0)) {
+                        if (labelLength > 0 && current == null) {
+                            createLeaf(labelLength, tree);
+                        }
+                        return tree;
+                    }
+                    break;
+                case ' ':
+                case '\t':
+                    break;
+                default:
+                    if (!afterClose) {
+                        labelLength = append(labelLength, ch);
+                        started = true;
+                    }
+            }
+        }
+
+        if (!started) {
+            return null;
+        }
+        if (depth != 0) {
+            throw new IllegalArgumentException("Unbalanced '(' in Newick input");
+        }
+        if (labelLength > 0 && current == null) {
+            createLeaf(labelLength, tree);
+        }
+        return tree;
+    }
+
+    private void push(int depth, TreeNode node) {
+        if (depth == stack.length) {
+            TreeNode[] grown = new TreeNode[stack.length * 2];
+            System.arraycopy(stack, 0, grown, 0, stack.length);
+            stack = grown;
+        }
+        stack[depth] = node;
+    }
+
+    private int append(int length, byte ch) {
+        if (length == label.length) {
+            byte[] grown = new byte[label.length * 2];
+            System.arraycopy(label, 0, grown, 0, label.length);
+            label = grown;
+        }
+        label[length] = ch;
+        return length + 1;
+    }
+
+    // Quoted label: everything up to the closing quote, where '' stands for a literal quote
+    private int readQuoted(int length) {
+        while (buffer.hasRemaining()) {
+            byte ch = buffer.get();
+            if (ch == '\'') {
+                if (buffer.hasRemaining() && buffer.get(buffer.position()) == '\'') {
+                    buffer.get();
+                } else {
+                    return length;
+                }
+            }
+            length = append(length, ch);
+        }
+        throw new IllegalArgumentException("Unterminated quoted label in Newick input");
+    }
+
+    private void skipBranchLength() {
+        while (buffer.hasRemaining()) {
+            byte ch = buffer.get(buffer.position());
+            if (ch == ',' || ch == ')' || ch == ';' || ch == '[' || ch == '\n' || ch == '\r') {
+                return;
+            }
+            buffer.get();
+        }
+    }
+
+    private void skipComment() {
+        while (buffer.hasRemaining()) {
+            if (buffer.get() == ']') {
+                return;
+            }
+        }
+    }
+
+    private TreeNode createLeaf(int length, PhylogeneticTree tree) {
+        String name = new String(label, 0, length, StandardCharsets.UTF_8);
+        TreeNode leaf = new TreeNode(taxa.intern(name), name);
+        tree.addNode(leaf);
+        return leaf;
+    }
+}
@@ -0,0 +1,112 @@
+package Unrooted;
+
+import java.util.Arrays;
+
+/**
+ * Per-thread pool of TreeNode and PhylogeneticTree objects for the solvers. While a search scope is open
+ * (open() .. close()), tree copies, embeddings, splits, singleton components and merged cherry leaves take
+ * their objects from here instead of allocating them; outside a scope node() and tree() are plain new.
+ * Objects are handed out from the top of a stack and release(mark) gives everything taken since the mark
+ * back in one step, so it can be handed out again. MutationLog.mark()/undo() do this for every branch,
+ * and closing the outermost scope releases the whole arena.
+ *
+ * Releasing is only safe because a branch's undo restores every structure the search keeps to its state
+ * at the mark: nothing reachable afterwards can point to an object taken after it.
+ */
+public final class NodeArena {
+    private static final ThreadLocal<NodeArena> CURRENT = ThreadLocal.withInitial(NodeArena::new);
+
+    private TreeNode[] nodes = new TreeNode[1024];
+    private int nodeCount; // nodes created so far
+    private int nodeTop;   // nodes[0 .. nodeTop) are handed out
+    private PhylogeneticTree[] trees = new PhylogeneticTree[64];
+    private int treeCount;
+    private int treeTop;
+    private int depth;     // open scopes; nested solvers open their own
+
+    private NodeArena() {
+    }
+
+    // The calling thread's arena.
+    public static NodeArena get() {
+        return CURRENT.get();
+    }
+
+    public boolean isOpen() {
+        return depth > 0;
+    }
+
+    // Start a search scope; returns the mark close() releases back to.
+    public long open() {
+        depth++;
+        return mark();
+    }
+
+    public void close(long mark) {
+        if (depth == 0) {
+            throw new IllegalStateException("No open arena scope");
+        }
+        release(mark);
+        depth--;
+    }
+
+    public long mark() {
+        return (long) treeTop << 32 | nodeTop;
+    }
+
+    public void release(long mark) {
+        releaseNodes((int) mark);
+        releaseTrees((int) (mark >>> 32));
+    }
+
+    void releaseNodes(int top) {
+        if (top < nodeTop) {
+            nodeTop = top;
+        }
+    }
+
+    void releaseTrees(int top) {
+        if (top < treeTop) {
+            treeTop = top;
+        }
+    }
+
+    // Nodes created so far and kept for reuse, for reporting.
+    public int nodesPooled() {
+        return nodeCount;
+    }
+
+    // A blank internal node (no taxon, no neighbours, no owner).
+    TreeNode node() {
+        if (depth == 0) {
+            return new TreeNode();
+        }
+        if (nodeTop == nodeCount) {
+            if (nodeCount == nodes.length) {
+                nodes = Arrays.copyOf(nodes, nodeCount * 2);
+            }
+            nodes[nodeCount++] = new TreeNode();
+            return nodes[nodeTop++];
+        }
+        TreeNode node = nodes[nodeTop++];
+        node.reset();
+        return node;
+    }
+
+    // An empty tree without log or sharers.
+    PhylogeneticTree tree() {
+        if (depth == 0) {
+            return new PhylogeneticTree();
+        }
+        if (treeTop == treeCount) {
+            if (treeCount == trees.length) {
+                trees = Arrays.copyOf(trees, treeCount * 2);
+            }
+            trees[treeCount++] = new PhylogeneticTree();
+            return trees[treeTop++];
+        }
+        PhylogeneticTree tree = trees[treeTop++];
+        tree.reset();
+        return tree;
+    }
+}
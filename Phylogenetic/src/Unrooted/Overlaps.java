@@ -0,0 +1,153 @@
+package Unrooted;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Every pair of leaf sets (forest components) whose embeddings in T share an edge, found in one pass over
+ * T instead of comparing the embeddings pair by pair. Each set is a colour: from each of its leaves we climb
+ * T's PathIndex rooting towards the LCA of the set, stopping at an edge the colour already holds, and
+ * append the colour to every edge passed. A colour reaching an edge that other colours hold makes a
+ * conflict with each of them. An edge is identified by the slot of its lower end.
+ *
+ * The climbs cover each embedding once, so the cost is O(n + m + total embedding size), which is O(n + m)
+ * while the embeddings are disjoint. Pairs are reported as the pairwise loop over i < j met them, each
+ * with all shared edges; sharedEdge(p, 0) is the edge getFirstOverlappingEdge gave for the pair.
+ */
+public final class Overlaps {
+    // Bit widths of a packed conflict record: first set, second set, slot of the shared edge.
+    private static final int SLOT_BITS = 21;
+    private static final int SET_BITS = 21;
+    private static final long SLOT_MASK = (1L << SLOT_BITS) - 1;
+    private static final long SET_MASK = (1L << SET_BITS) - 1;
+
+    private final PathIndex index;
+    private final long[] records;  // sorted (i, j, slot) records, one per shared edge
+    private final int[] pairStart; // records[pairStart[p] .. pairStart[p + 1]) belong to pair p
+
+    private Overlaps(PathIndex index, long[] records, int count) {
+        this.index = index;
+        this.records = Arrays.copyOf(records, count);
+        Arrays.sort(this.records);
+        int pairs = 0;
+        int[] starts = new int[count + 1];
+        for (int r = 0; r < count; r++) {
+            if (r == 0 || (this.records[r] >>> SLOT_BITS) != (this.records[r - 1] >>> SLOT_BITS)) {
+                starts[pairs++] = r;
+            }
+        }
+        starts[pairs] = count;
+        pairStart = Arrays.copyOf(starts, pairs + 1);
+    }
+
+    // Overlaps between the embeddings of the given components' leaf sets in T.
+    public static Overlaps of(PhylogeneticTree T, List<PhylogeneticTree> components) {
+        long[][] leafSets = new long[components.size()][];
+        for (int c = 0; c < leafSets.length; c++) {
+            leafSets[c] = components.get(c).getLeafBits();
+        }
+        return of(T, leafSets);
+    }
+
+    public static Overlaps of(PhylogeneticTree T, long[]... leafSets) {
+        PathIndex index = PathIndex.of(T);
+        if (!index.isExact()) {
+            throw new IllegalStateException("Overlap detection needs a tree whose node list is a forest of its own nodes");
+        }
+        if (leafSets.length > SET_MASK || index.size() > SLOT_MASK) {
+            throw new IllegalArgumentException("Too many leaf sets or nodes for overlap detection");
+        }
+
+        // Colours on each edge as linked entries: head[slot] is the newest, so "already holds" is one check.
+        int[] head = new int[index.size()];
+        Arrays.fill(head, -1);
+        int[] colour = new int[16];
+        int[] next = new int[16];
+        int entries = 0;
+        long[] records = new long[16];
+        int count = 0;
+
+        for (int c = 0; c < leafSets.length; c++) {
+            int top = topOf(T, index, leafSets[c]);
+            if (top == -1) {
+                continue; // fewer than two leaves in T: no edges
+            }
+            long[] bits = leafSets[c];
+            for (int w = 0; w < bits.length; w++) {
+                for (long word = bits[w]; word != 0; word &= word - 1) {
+                    TreeNode leaf = T.findLeaf(w << 6 | Long.numberOfTrailingZeros(word));
+                    if (leaf == null) {
+                        continue;
+                    }
+                    int slot = index.slot(leaf);
+                    while (slot != top && (head[slot] == -1 || colour[head[slot]] != c)) {
+                        for (int e = head[slot]; e != -1; e = next[e]) {
+                            if (count == records.length) {
+                                records = Arrays.copyOf(records, count * 2);
+                            }
+                            records[count++] = (long) colour[e] << (SET_BITS + SLOT_BITS) | (long) c << SLOT_BITS | slot;
+                        }
+                        if (entries == colour.length) {
+                            colour = Arrays.copyOf(colour, entries * 2);
+                            next = Arrays.copyOf(next, entries * 2);
+                        }
+                        colour[entries] = c;
+                        next[entries] = head[slot];
+                        head[slot] = entries++;
+                        slot = index.parent(slot);
+                    }
+                }
+            }
+        }
+        return new Overlaps(index, records, count);
+    }
+
+    // Slot of the LCA of the set's leaves that are in T, or -1 if fewer than two of them are.
+    private static int topOf(PhylogeneticTree T, PathIndex index, long[] bits) {
+        TreeNode top = null;
+        int leaves = 0;
+        for (int w = 0; w < bits.length; w++) {
+            for (long word = bits[w]; word != 0; word &= word - 1) {
+                TreeNode leaf = T.findLeaf(w << 6 | Long.numberOfTrailingZeros(word));
+                if (leaf == null) {
+                    continue; // not in T, so not part of the embedding
+                }
+                top = top == null ? leaf : index.lca(top, leaf);
+                if (top == null) {
+                    throw new IllegalStateException("Overlap detection needs each leaf set in one part of T");
+                }
+                leaves++;
+            }
+        }
+        return leaves < 2 ? -1 : index.slot(top);
+    }
+
+    public boolean isEmpty() {
+        return records.length == 0;
+    }
+
+    // Number of overlapping pairs.
+    public int pairs() {
+        return pairStart.length - 1;
+    }
+
+    // Index of the first (smaller) leaf set of pair p.
+    public int first(int p) {
+        return (int) (records[pairStart[p]] >>> (SET_BITS + SLOT_BITS));
+    }
+
+    // Index of the second leaf set of pair p.
+    public int second(int p) {
+        return (int) (records[pairStart[p]] >>> SLOT_BITS & SET_MASK);
+    }
+
+    public int sharedEdges(int p) {
+        return pairStart[p + 1] - pairStart[p];
+    }
+
+    // The n-th edge shared by pair p as (parent, child) under T's index rooting, in node order.
+    public List<TreeNode> sharedEdge(int p, int n) {
+        int slot = (int) (records[pairStart[p] + n] & SLOT_MASK);
+        return Arrays.asList(index.node(index.parent(slot)), index.node(slot));
+    }
+}
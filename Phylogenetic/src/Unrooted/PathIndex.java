@@ -0,0 +1,274 @@
+package Unrooted;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Path index over the nodes of one PhylogeneticTree. Each connected part is rooted at its first node in
+ * node-list order; one iterative DFS stores every node's slot, parent, depth and root, so path(a, b) walks
+ * the two parent chains in O(path length). lca() and distance() are O(1) through an Euler tour with a
+ * sparse table of depth minima, built on the first such query.
+ *
+ * A tree keeps its index and rebuilds it in place when its structure counter has moved on (see
+ * PhylogeneticTree.structure), so repeated queries on an unchanged tree share one O(n) build. The index
+ * only answers for what it was built over: a node it does not hold, or a tree whose node list does not
+ * form a forest of its own nodes (a node owned elsewhere, a cycle, a repeated neighbour), makes covers()
+ * false and the caller falls back to a plain search.
+ */
+public final class PathIndex {
+    private TreeNode[] nodeAt = new TreeNode[64]; // slot -> node, in DFS preorder
+    private int[] parent = new int[64];           // slot of the parent, -1 at a root
+    private int[] depth = new int[64];
+    private int[] root = new int[64];             // slot of the root of the node's part
+    private int size;
+    private int builtAt;                          // tree.structure at the last build
+    private boolean exact;
+
+    // Euler tour (slots) and sparse table of the shallowest slot per power-of-two window; built lazily.
+    private int[] euler;
+    private int[] first;
+    private int[][] shallowest;
+    private boolean rmqBuilt;
+
+    private PathIndex() {
+    }
+
+    // The tree's index, rebuilt first if the tree changed since it was last built.
+    static PathIndex of(PhylogeneticTree tree) {
+        PathIndex index = tree.pathIndex;
+        if (index == null) {
+            index = new PathIndex();
+            tree.pathIndex = index;
+            index.build(tree);
+        } else if (index.builtAt != tree.structure) {
+            index.build(tree);
+        }
+        return index;
+    }
+
+    // True if both nodes are in the index and the index is exact, so the queries below answer for them.
+    boolean covers(TreeNode a, TreeNode b) {
+        return exact && slot(a) != -1 && slot(b) != -1;
+    }
+
+    // Unique path from a to b (a first, b last), or null if they are in different parts.
+    List<TreeNode> path(TreeNode a, TreeNode b) {
+        int u = slot(a);
+        int v = slot(b);
+        if (root[u] != root[v]) {
+            return null;
+        }
+        List<TreeNode> up = new ArrayList<>(); // a .. lca
+        List<TreeNode> down = new ArrayList<>(); // b .. below lca, reversed at the end
+        while (depth[u] > depth[v]) {
+            up.add(nodeAt[u]);
+            u = parent[u];
+        }
+        while (depth[v] > depth[u]) {
+            down.add(nodeAt[v]);
+            v = parent[v];
+        }
+        while (u != v) {
+            up.add(nodeAt[u]);
+            down.add(nodeAt[v]);
+            u = parent[u];
+            v = parent[v];
+        }
+        up.add(nodeAt[u]);
+        for (int i = down.size() - 1; i >= 0; i--) {
+            up.add(down.get(i));
+        }
+        return up;
+    }
+
+    // Lowest common ancestor of a and b under this index's rooting, or null if they are in different parts.
+    TreeNode lca(TreeNode a, TreeNode b) {
+        int l = lcaSlot(slot(a), slot(b));
+        return l == -1 ? null : nodeAt[l];
+    }
+
+    // Number of edges between a and b, or -1 if they are in different parts.
+    int distance(TreeNode a, TreeNode b) {
+        int u = slot(a);
+        int v = slot(b);
+        int l = lcaSlot(u, v);
+        return l == -1 ? -1 : depth[u] + depth[v] - 2 * depth[l];
+    }
+
+    // === SLOTS ===
+    // Nodes are numbered in DFS preorder, so a parent's slot is always smaller than its children's.
+
+    boolean isExact() {
+        return exact;
+    }
+
+    int size() {
+        return size;
+    }
+
+    TreeNode node(int slot) {
+        return nodeAt[slot];
+    }
+
+    int parent(int slot) {
+        return parent[slot];
+    }
+
+    int root(int slot) {
+        return root[slot];
+    }
+
+    // Slot of the node, or -1 if this index does not hold it.
+    int slot(TreeNode node) {
+        int slot = node.pathSlot;
+        return slot >= 0 && slot < size && nodeAt[slot] == node ? slot : -1;
+    }
+
+    private int lcaSlot(int u, int v) {
+        if (root[u] != root[v]) {
+            return -1;
+        }
+        if (!rmqBuilt) {
+            buildRmq();
+        }
+        int from = Math.min(first[u], first[v]);
+        int to = Math.max(first[u], first[v]);
+        int level = 31 - Integer.numberOfLeadingZeros(to - from + 1);
+        int x = shallowest[level][from];
+        int y = shallowest[level][to - (1 << level) + 1];
+        return depth[x] <= depth[y] ? x : y;
+    }
+
+    private void build(PhylogeneticTree tree) {
+        builtAt = tree.structure;
+        size = 0;
+        exact = true;
+        rmqBuilt = false;
+        int[] stack = new int[16]; // slots; the next neighbour to visit is kept in next[]
+        int[] next = new int[16];
+        for (TreeNode start : tree.nodes) {
+            if (slot(start) != -1) {
+                continue;
+            }
+            int top = 0;
+            int r = add(start, -1, 0, -1);
+            stack = grow(stack, 0);
+            stack[0] = r;
+            next = grow(next, 0);
+            next[0] = 0;
+            while (top >= 0) {
+                int u = stack[top];
+                List<TreeNode> neighbors = nodeAt[u].neighbors;
+                if (next[top] == neighbors.size()) {
+                    top--;
+                    continue;
+                }
+                TreeNode neighbor = neighbors.get(next[top]++);
+                int seen = slot(neighbor);
+                if (seen != -1) {
+                    // Only the edge back to the parent may lead to a node already indexed, and only once.
+                    if (seen != parent[u] || countOf(neighbors, neighbor) > 1) {
+                        exact = false;
+                    }
+                    continue;
+                }
+                int v = add(neighbor, u, depth[u] + 1, r);
+                top++;
+                stack = grow(stack, top);
+                next = grow(next, top);
+                stack[top] = v;
+                next[top] = 0;
+            }
+        }
+        for (int i = 0; i < size; i++) {
+            if (nodeAt[i].owner != tree) {
+                exact = false;
+                break;
+            }
+        }
+    }
+
+    private int add(TreeNode node, int parentSlot, int nodeDepth, int rootSlot) {
+        if (size == nodeAt.length) {
+            int capacity = size * 2;
+            nodeAt = Arrays.copyOf(nodeAt, capacity);
+            parent = Arrays.copyOf(parent, capacity);
+            depth = Arrays.copyOf(depth, capacity);
+            root = Arrays.copyOf(root, capacity);
+        }
+        int slot = size++;
+        nodeAt[slot] = node;
+        parent[slot] = parentSlot;
+        depth[slot] = nodeDepth;
+        root[slot] = rootSlot == -1 ? slot : rootSlot;
+        node.pathSlot = slot;
+        return slot;
+    }
+
+    private static int countOf(List<TreeNode> list, TreeNode node) {
+        int count = 0;
+        for (TreeNode n : list) {
+            if (n == node) count++;
+        }
+        return count;
+    }
+
+    private static int[] grow(int[] array, int index) {
+        return index < array.length ? array : Arrays.copyOf(array, array.length * 2);
+    }
+
+    // Euler tour from the parent links: in preorder every node follows its parent's subtree prefix, so
+    // walking the slots in order and climbing back to each next node's parent reproduces the tour.
+    private void buildRmq() {
+        int length = Math.max(1, 2 * size - 1);
+        if (euler == null || euler.length < length) {
+            euler = new int[length];
+        }
+        if (first == null || first.length < size) {
+            first = new int[nodeAt.length];
+        }
+        int n = 0;
+        int[] path = new int[16]; // slots from the current root down to the last visited node
+        int pathTop = -1;
+        for (int slot = 0; slot < size; slot++) {
+            while (pathTop >= 0 && path[pathTop] != parent[slot]) {
+                pathTop--;
+                if (pathTop >= 0) {
+                    euler[n++] = path[pathTop]; // back up to the parent
+                }
+            }
+            path = grow(path, pathTop + 1);
+            path[++pathTop] = slot;
+            first[slot] = n;
+            euler[n++] = slot;
+        }
+        while (pathTop > 0) {
+            euler[n++] = path[--pathTop];
+        }
+        // Parts follow each other in the tour; a query never spans two of them (roots are compared first).
+        int levels = 32 - Integer.numberOfLeadingZeros(n);
+        if (shallowest == null || shallowest.length < levels) {
+            shallowest = new int[levels][];
+        }
+        if (shallowest[0] == null || shallowest[0].length < n) {
+            shallowest[0] = new int[euler.length];
+        }
+        System.arraycopy(euler, 0, shallowest[0], 0, n);
+        for (int level = 1; level < levels; level++) {
+            int half = 1 << (level - 1);
+            int count = n - (1 << level) + 1;
+            if (shallowest[level] == null || shallowest[level].length < count) {
+                shallowest[level] = new int[euler.length];
+            }
+            int[] below = shallowest[level - 1];
+            int[] row = shallowest[level];
+            for (int i = 0; i < count; i++) {
+                int x = below[i];
+                int y = below[i + half];
+                row[i] = depth[x] <= depth[y] ? x : y;
+            }
+        }
+        rmqBuilt = true;
+    }
+}
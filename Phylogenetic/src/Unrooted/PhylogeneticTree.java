@@ -1,120 +1,348 @@
 package Unrooted;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
 
 public class PhylogeneticTree {
-    List<TreeNode> nodes;
+    List<TreeNode> nodes; // only change through addNode/removeNode & co. so the leaf index stays valid
+    TreeNode[] leafIndex = new TreeNode[0]; // taxon id -> leaf node of this tree
+    long[] leafBits = LeafBits.EMPTY; // taxon ids of the leaves, as a bitset (bit t set iff leafIndex[t] != null)
+    long leafHash; // Zobrist hash of the leaf set, kept in step with leafBits
+    MutationLog log; // while set, every change below is recorded so a solver can undo it
+    int sharers; // forests holding this tree besides the first one; Forest copies a shared tree before writing
+    TreeSet<TreeNode> cherryNodes; // owned internal nodes with two or more leaf neighbours, in node order (built on first use)
+    private int nextOrder; // last order stamp handed out by addNode
+    int structure; // bumped by every change to the node list or to an owned node's neighbours; never undone
+    PathIndex pathIndex; // rooted path/LCA index, rebuilt when structure has moved on (built on first use)
 
     PhylogeneticTree() {
         nodes = new ArrayList<>();
     }
 
+    // Back to an empty tree for NodeArena; the index arrays are kept and cleared rather than reallocated.
+    void reset() {
+        nodes.clear();
+        Arrays.fill(leafIndex, null);
+        Arrays.fill(leafBits, 0L);
+        leafHash = 0;
+        log = null;
+        sharers = 0;
+        cherryNodes = null;
+        structure++;
+    }
+
+    // Record all further changes to this tree in the given log (null to stop recording).
+    public void setLog(MutationLog log) {
+        this.log = log;
+    }
+
+    // Sharing is a change to the forests holding the tree, so it goes to the given forest's log (may be null),
+    // not to the tree's own: a shared tree has no log, as it may belong to a caller.
+    void share(MutationLog forestLog) {
+        setSharers(sharers + 1, forestLog);
+    }
+
+    void unshare(MutationLog forestLog) {
+        setSharers(sharers - 1, forestLog);
+    }
+
+    private void setSharers(int value, MutationLog forestLog) {
+        if (forestLog != null) forestLog.changedSharers(this, sharers);
+        sharers = value;
+    }
+
     public void addNode(TreeNode node) { 
         nodes.add(node);
+        structure++;
+        if (log != null) log.addedNode(this);
+        setOwner(node, this);
+        if (node.isLeaf) {
+            indexLeaf(node);
+        } else {
+            updateCherry(node);
+        }
     }
 
     public void removeNode(TreeNode node){
-        nodes.remove(node);
+        int index = nodes.indexOf(node);
+        if (index != -1) {
+            nodes.remove(index);
+            structure++;
+            if (log != null) log.removedNode(this, node, index);
+        }
+        release(node);
+    }
+
+    public void addNodes(Collection<TreeNode> toAdd) {
+        for (TreeNode node : toAdd) {
+            addNode(node);
+        }
+    }
+
+    // Same result as nodes.removeAll(toRemove), one recorded removal at a time.
+    public void removeNodes(Collection<TreeNode> toRemove) {
+        for (int i = nodes.size() - 1; i >= 0; i--) {
+            TreeNode node = nodes.get(i);
+            if (toRemove.contains(node)) {
+                nodes.remove(i);
+                structure++;
+                if (log != null) log.removedNode(this, node, i);
+            }
+        }
+        for (TreeNode node : toRemove) {
+            release(node);
+        }
+    }
+
+    public void removeNodeAt(int index) {
+        TreeNode node = nodes.remove(index);
+        structure++;
+        if (log != null) log.removedNode(this, node, index);
+        release(node);
+    }
+
+    public void clearNodes() {
+        for (int i = nodes.size() - 1; i >= 0; i--) {
+            removeNodeAt(i);
+        }
+    }
+
+    private void release(TreeNode node) {
+        if (node.owner == this) {
+            setOwner(node, null);
+        }
+        unindexLeaf(node);
+    }
+
+    // Joining a tree appends to its node list, so the node gets the next, largest order stamp there.
+    private void setOwner(TreeNode node, PhylogeneticTree owner) {
+        if (node.owner != null) {
+            node.owner.dropCherry(node); // its order may change below, so take it out of the old index first
+        }
+        if (log != null) log.changedOwner(node, node.owner, node.order);
+        changedStructure(node.owner);
+        node.owner = owner;
+        changedStructure(owner);
+        if (owner != null) {
+            node.order = ++owner.nextOrder;
+        }
+    }
+
+    // A path index built over the tree no longer describes it.
+    static void changedStructure(PhylogeneticTree tree) {
+        if (tree != null) {
+            tree.structure++;
+        }
+    }
+
+    // Leaf set of this tree as a bitset over taxon ids. Live view: do not modify, and copy it if it must
+    // survive later changes to the tree.
+    public long[] getLeafBits() {
+        return leafBits;
+    }
+
+    // Zobrist hash of the leaf set (see Zobrist): equal leaf sets give equal hashes, whatever the history.
+    public long getLeafHash() {
+        return leafHash;
+    }
+
+    // O(1) lookup of the leaf carrying the given taxon id, or null if it is not in this tree.
+    public TreeNode findLeaf(int taxon) {
+        return taxon >= 0 && taxon < leafIndex.length ? leafIndex[taxon] : null;
+    }
+
+    private void indexLeaf(TreeNode leaf) {
+        if (leaf.taxon < 0) {
+            return;
+        }
+        if (leaf.taxon >= leafIndex.length) {
+            if (log != null) log.replacedLeafIndex(this, leafIndex);
+            leafIndex = Arrays.copyOf(leafIndex, Math.max(leaf.taxon + 1, leafIndex.length * 2));
+        }
+        setLeafSlot(leaf.taxon, leaf);
+        if (!LeafBits.contains(leafBits, leaf.taxon)) {
+            if ((leaf.taxon >>> 6) >= leafBits.length) {
+                if (log != null) log.replacedLeafBits(this, leafBits);
+                leafBits = Arrays.copyOf(leafBits, Math.max((leaf.taxon >>> 6) + 1, leafBits.length * 2));
+            }
+            flipLeafBit(leaf.taxon);
+        }
+    }
+
+    // A merged cherry leaf reuses one of the old ids, so only clear the slot if it still points here.
+    private void unindexLeaf(TreeNode node) {
+        if (node.isLeaf && node.taxon >= 0 && node.taxon < leafIndex.length && leafIndex[node.taxon] == node) {
+            setLeafSlot(node.taxon, null);
+            flipLeafBit(node.taxon);
+        }
+    }
+
+    private void flipLeafBit(int taxon) {
+        if (log != null) log.flippedLeaf(this, taxon);
+        flipLeaf(taxon);
+    }
+
+    // Adds or removes the taxon in leafBits and leafHash together (MutationLog undoes through here too).
+    void flipLeaf(int taxon) {
+        leafBits[taxon >>> 6] ^= 1L << taxon;
+        leafHash ^= Zobrist.taxon(taxon);
+    }
+
+    private void setLeafSlot(int taxon, TreeNode leaf) {
+        if (log != null) log.changedSlot(leafIndex, taxon, leafIndex[taxon]);
+        leafIndex[taxon] = leaf;
     }
 
     void addEdge(TreeNode node1, TreeNode node2) {
-        node1.neighbors.add(node2);
-        node2.neighbors.add(node1);
+        link(node1, node2);
+        link(node2, node1);
     }
 
     void cutEdge(TreeNode node1, TreeNode node2) {
-        node1.neighbors.remove(node2);
-        node2.neighbors.remove(node1);
+        unlink(node1, node2);
+        unlink(node2, node1);
     }
 
-    public void printAdjacencyList() {
-        System.out.println("Unrooted Tree (Adjacency List):");
-        for (TreeNode node : nodes) {
-            String label = node.isLeaf ? node.label : "*";
-            System.out.print(label + " → ");
-            List<String> neighborLabels = new ArrayList<>();
-            for (TreeNode neighbor : node.neighbors) {
-                neighborLabels.add(neighbor.isLeaf ? neighbor.label : "*");
-            }
-            System.out.println(String.join(", ", neighborLabels));
+    // One direction of an edge: append 'to' to the neighbours of 'from'.
+    void link(TreeNode from, TreeNode to) {
+        from.neighbors.add(to);
+        structure++;
+        changedStructure(from.owner);
+        if (log != null) log.addedNeighbor(from);
+        if (to.isLeaf) {
+            updateCherry(from);
         }
     }
 
-    //Implementation of Embedding with given set of leaves
-    //For each pair of leaf labels, find the path between them
-    //Collect all unique nodes and edges that are used in any of those paths
-    //Build and return a new PhylogeneticTree using those nodes and edges
-    public PhylogeneticTree getEmbedding(List<String> leafLabels) {
-        List<TreeNode> leafNodes = new ArrayList<>();
-        for (TreeNode node : nodes) {
-            if (node.isLeaf && leafLabels.contains(node.label)) {
-                leafNodes.add(node);
+    // One direction of an edge: drop the first occurrence of 'to' from the neighbours of 'from'.
+    void unlink(TreeNode from, TreeNode to) {
+        int index = from.neighbors.indexOf(to);
+        if (index != -1) {
+            from.neighbors.remove(index);
+            structure++;
+            changedStructure(from.owner);
+            if (log != null) log.removedNeighbor(from, to, index);
+            if (to.isLeaf) {
+                updateCherry(from);
             }
         }
-    
-        List<TreeNode> collectedNodes = new ArrayList<>();
-        List<List<TreeNode>> collectedEdges = new ArrayList<>();
-    
-        for (int i = 0; i < leafNodes.size(); i++) {
-            for (int j = i + 1; j < leafNodes.size(); j++) {
-                TreeNode start = leafNodes.get(i);
-                TreeNode end = leafNodes.get(j);
-                List<TreeNode> path = TreeUtils.findPath(start, end, new ArrayList<>(), new ArrayList<>());
-                if (path != null) {
-                    for (TreeNode node : path) {
-                        if (!collectedNodes.contains(node)) {
-                            collectedNodes.add(node);
-                        }
-                    }
-                    for (int k = 0; k < path.size() - 1; k++) {
-                        List<TreeNode> edge = new ArrayList<>();
-                        edge.add(path.get(k));
-                        edge.add(path.get(k + 1));
-                        if (!edgeExists(edge, collectedEdges)) {
-                            collectedEdges.add(edge);
-                        }
-                    }
+    }
+
+    // === CHERRY INDEX ===
+    // Once asked for, a tree keeps the internal nodes it owns that have at least two leaf neighbours in a
+    // set ordered by node stamp, i.e. by position in the node list. Every neighbour or owner change updates
+    // the entry of the node it touches (in the index of that node's owner) and is logged like the change
+    // itself, so undo restores the index too. Nodes still listed in a tree that was split no longer belong
+    // to it and are not reported.
+
+    private static final Comparator<TreeNode> BY_ORDER = (a, b) -> Integer.compare(a.order, b.order);
+
+    // Cherry parents in node order; the live index, do not modify.
+    public Collection<TreeNode> cherryNodes() {
+        if (cherryNodes == null) {
+            cherryNodes = new TreeSet<>(BY_ORDER);
+            if (log != null) log.builtCherryIndex(this);
+            for (TreeNode node : nodes) {
+                if (node.owner == this && isCherryParent(node)) {
+                    cherryNodes.add(node);
                 }
             }
         }
-    
-        // Create a new tree with copies of the collected nodes
-        PhylogeneticTree embedded = new PhylogeneticTree();
-        List<TreeNode> newNodes = new ArrayList<>();
-    
-        for (TreeNode original : collectedNodes) {
-            TreeNode copy = original.isLeaf ? new TreeNode(original.label) : new TreeNode();
-            copy.isLeaf = original.isLeaf;
-            embedded.addNode(copy);
-            newNodes.add(copy);
+        return cherryNodes;
+    }
+
+    // The cherry findCherries(this).get(0) would return, or null if there is none. No scan of the tree:
+    // the first cherry parent's first two leaf neighbours, or the two leaves of a two-leaf tree.
+    public List<TreeNode> firstCherry() {
+        Collection<TreeNode> parents = cherryNodes();
+        if (!parents.isEmpty()) {
+            TreeNode parent = cherryNodes.first();
+            TreeNode first = null;
+            for (TreeNode neighbor : parent.neighbors) {
+                if (!neighbor.isLeaf) {
+                    continue;
+                }
+                if (first != null) {
+                    return Arrays.asList(first, neighbor);
+                }
+                first = neighbor;
+            }
         }
-    
-        // Connect edges using position/index in collectedNodes
-        for (List<TreeNode> edge : collectedEdges) {
-            int idx1 = collectedNodes.indexOf(edge.get(0));
-            int idx2 = collectedNodes.indexOf(edge.get(1));
-            embedded.addEdge(newNodes.get(idx1), newNodes.get(idx2));
+        if (nodes.size() == 2 && nodes.get(0).isLeaf && nodes.get(1).isLeaf) {
+            return Arrays.asList(nodes.get(0), nodes.get(1));
         }
-    
-        return embedded;
+        return null;
     }
-    
-    // Helper: check if edge already exists
-    private boolean edgeExists(List<TreeNode> edge, List<List<TreeNode>> edgeList) {
-        for (List<TreeNode> e : edgeList) {
-            if ((e.get(0) == edge.get(0) && e.get(1) == edge.get(1)) ||
-                (e.get(0) == edge.get(1) && e.get(1) == edge.get(0))) {
+
+    static boolean isCherryParent(TreeNode node) {
+        if (node.isLeaf) {
+            return false;
+        }
+        int leaves = 0;
+        for (TreeNode neighbor : node.neighbors) {
+            if (neighbor.isLeaf && ++leaves == 2) {
                 return true;
             }
         }
         return false;
     }
 
+    private static void updateCherry(TreeNode node) {
+        PhylogeneticTree owner = node.owner;
+        if (owner != null && owner.cherryNodes != null) {
+            owner.setCherry(node, isCherryParent(node));
+        }
+    }
+
+    private void dropCherry(TreeNode node) {
+        if (cherryNodes != null) {
+            setCherry(node, false);
+        }
+    }
+
+    private void setCherry(TreeNode node, boolean cherry) {
+        if (cherry ? cherryNodes.add(node) : cherryNodes.remove(node)) {
+            if (log != null) log.toggledCherry(this, node);
+        }
+    }
+
+    public void printAdjacencyList() {
+        System.out.println("Unrooted Tree (Adjacency List):");
+        for (TreeNode node : nodes) {
+            String label = node.isLeaf ? node.getLabel() : "*";
+            System.out.print(label + " → ");
+            List<String> neighborLabels = new ArrayList<>();
+            for (TreeNode neighbor : node.neighbors) {
+                neighborLabels.add(neighbor.isLeaf ? neighbor.getLabel() : "*");
+            }
+            System.out.println(String.join(", ", neighborLabels));
+        }
+    }
+
+    // Unique path from a to b (a first, b last) as a new list, or null if they are not connected. Answered
+    // from the tree's PathIndex in O(path length); falls back to a DFS for nodes the index does not cover.
+    public List<TreeNode> findPath(TreeNode a, TreeNode b) {
+        PathIndex index = PathIndex.of(this);
+        if (index.covers(a, b)) {
+            return index.path(a, b);
+        }
+        return TreeUtils.findPath(a, b);
+    }
+
+    // Copy of the minimal subtree spanning the leaves with the given taxon ids, in O(n) (see Embedding;
+    // use Embedding.of(this, leafTaxa).restriction() when only the suppressed restriction is needed).
+    public PhylogeneticTree getEmbedding(long[] leafTaxa) {
+        return Embedding.of(this, leafTaxa).copy();
+    }
+
     //Logic for restrcition:
     //Traverse the subtree
     //While any internal node has degree = 2:
@@ -151,7 +379,7 @@ public class PhylogeneticTree {
             }
     
             // Clean up suppressed nodes
-            embedded.nodes.removeAll(toRemove);
+            embedded.removeNodes(toRemove);
     
         } while (changed); // Repeat until no more degree-2 internal nodes
     
@@ -161,22 +389,25 @@ public class PhylogeneticTree {
     public List<PhylogeneticTree> splitIntoTwo(TreeNode n1, TreeNode n2) {
         
         cutEdge(n1, n2);
-        // Step 1: Collect nodes reachable from n1
-        Set<TreeNode> visited1 = new HashSet<>();
-        dfs(n1, visited1);
+        // Step 1: Collect nodes reachable from n1, then from n2 (iteratively, in DFS order)
+        Traversal traversal = Traversal.get();
+        List<TreeNode> visited1 = new ArrayList<>();
+        traversal.depthFirst(n1, null, visited1);
+        List<TreeNode> visited2 = new ArrayList<>();
+        traversal.depthFirst(n2, null, visited2);
     
-        // Step 2: Collect nodes reachable from n2
-        Set<TreeNode> visited2 = new HashSet<>();
-        dfs(n2, visited2);
+        // Step 2: Build two new trees
+        NodeArena arena = NodeArena.get();
+        PhylogeneticTree tree1 = arena.tree();
+        tree1.log = log;
+        tree1.addNodes(visited1);
     
-        // Step 3: Build two new trees
-        PhylogeneticTree tree1 = new PhylogeneticTree();
-        tree1.nodes.addAll(visited1);
+        PhylogeneticTree tree2 = arena.tree();
+        tree2.log = log;
+        tree2.addNodes(visited2);
     
-        PhylogeneticTree tree2 = new PhylogeneticTree();
-        tree2.nodes.addAll(visited2);
-    
-        // Step 4: Clean up neighbor lists
+        // Step 3: Clean up neighbor lists (the two sets coincide if the cut did not disconnect n1 and n2,
+        // so each is marked again right before its own clean-up)
         cleanNeighbors(tree1, visited1);
         cleanNeighbors(tree2, visited2);
     
@@ -187,89 +418,86 @@ public class PhylogeneticTree {
         return result;
     }
     
-    
-    // Reuse your DFS
-    private void dfs(TreeNode node, Set<TreeNode> visited) {
-        if (visited.contains(node)) return;
-        visited.add(node);
-        for (TreeNode neighbor : node.neighbors) {
-            dfs(neighbor, visited);
-        }
-    }
-    
     // New helper: clean neighbors properly
-    private void cleanNeighbors(PhylogeneticTree tree, Set<TreeNode> allowed) {
+    private void cleanNeighbors(PhylogeneticTree tree, List<TreeNode> allowed) {
+        long epoch = Traversal.newEpoch();
+        for (TreeNode node : allowed) {
+            Traversal.mark(node, epoch);
+        }
         for (TreeNode node : tree.nodes) {
+            if (allMarked(node.neighbors, epoch)) {
+                continue; // nothing to drop, keep the list as it is
+            }
             List<TreeNode> newNeighbors = new ArrayList<>();
             for (TreeNode neighbor : node.neighbors) {
-                if (allowed.contains(neighbor)) {
+                if (Traversal.isMarked(neighbor, epoch)) {
                     newNeighbors.add(neighbor);
                 }
             }
+            if (log != null) log.replacedNeighbors(node, node.neighbors);
             node.neighbors = newNeighbors; // Update the full neighbor list
+            tree.structure++;
+            changedStructure(node.owner);
+            updateCherry(node);
         }
-    }   
+    }
 
-    // Revised deep-copy method for a phylogenetic tree.
-    public PhylogeneticTree copyTree() {
-        PhylogeneticTree original = this;
-        // First, snapshot the list of nodes from the original tree.
-        List<TreeNode> originalNodes = new ArrayList<>(original.nodes);
-        PhylogeneticTree newTree = new PhylogeneticTree();
-        List<TreeNode> copiedNodes = new ArrayList<>();
-        
-        // Create new copies of every node.
-        for (TreeNode node : originalNodes) {
-            TreeNode copy = node.isLeaf ? new TreeNode(node.label) : new TreeNode();
-            copy.isLeaf = node.isLeaf;
-            copiedNodes.add(copy);
-            newTree.addNode(copy);
-        }
-        
-        // Re-establish neighbor relationships based on the index in the snapshot.
-        for (int i = 0; i < originalNodes.size(); i++) {
-            TreeNode orig = originalNodes.get(i);
-            TreeNode copy = copiedNodes.get(i);
-            for (TreeNode neighbor : orig.neighbors) {
-                int idx = originalNodes.indexOf(neighbor);
-                if (idx != -1) {
-                    TreeNode copyNeighbor = copiedNodes.get(idx);
-                    // Add the neighbor if it is not already present. 
-                    if (!copy.neighbors.contains(copyNeighbor)) {
-                        copy.neighbors.add(copyNeighbor);
-                    }
-                }
+    private static boolean allMarked(List<TreeNode> nodes, long epoch) {
+        for (TreeNode node : nodes) {
+            if (!Traversal.isMarked(node, epoch)) {
+                return false;
             }
         }
+        return true;
+    }   
+
+    // Deep copy, with nodes and neighbours in the same order as here.
+    public PhylogeneticTree copyTree() {
+        PhylogeneticTree newTree = NodeArena.get().tree();
+        copyTreeWithMapping(newTree);
         return newTree;
     }
 
+    // Copies this tree's nodes and edges into outputCopy; returns original node -> copy. One pass over the
+    // edges through an identity map, so the copy is linear in the tree's size.
     public Map<TreeNode, TreeNode> copyTreeWithMapping(PhylogeneticTree outputCopy) {
-        Map<TreeNode, TreeNode> nodeMap = new HashMap<>();
-        List<TreeNode> originalNodes = new ArrayList<>(this.nodes);
+        Map<TreeNode, TreeNode> nodeMap = new IdentityHashMap<>(2 * nodes.size());
+        NodeArena arena = NodeArena.get();
     
         // Step 1: Copy nodes
-        for (TreeNode original : originalNodes) {
-            TreeNode copy = original.isLeaf ? new TreeNode(original.label) : new TreeNode();
+        for (TreeNode original : nodes) {
+            TreeNode copy = original.isLeaf ? original.copyLeaf(arena) : arena.node();
             copy.isLeaf = original.isLeaf;
             nodeMap.put(original, copy);
             outputCopy.addNode(copy);
         }
     
-        // Step 2: Copy neighbor relationships
-        for (TreeNode original : originalNodes) {
+        // Step 2: Copy neighbor relationships (a neighbour outside this tree has no copy and is skipped)
+        for (TreeNode original : nodes) {
             TreeNode copy = nodeMap.get(original);
             for (TreeNode neighbor : original.neighbors) {
                 TreeNode copyNeighbor = nodeMap.get(neighbor);
-                if (copyNeighbor != null && !copy.neighbors.contains(copyNeighbor)) {
+                if (copyNeighbor != null) {
                     copy.neighbors.add(copyNeighbor);
                 }
             }
         }
+        outputCopy.structure++; // neighbours were filled in directly
     
         return nodeMap;
     }
     
+    // True if suppressDegree2Nodes would change this tree.
+    public boolean hasSuppressibleNode() {
+        for (TreeNode node : nodes) {
+            if (!node.isLeaf && node.neighbors.size() == 2
+                    && !(node.neighbors.get(0).isLeaf && node.neighbors.get(1).isLeaf)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     // Suppress degree‑2 internal nodes in the given tree. If both neighbours are internal then remove. Also, if one neighbour is leaf and the other is internal also remove. 
     public boolean suppressDegree2Nodes() {
         boolean changeMade = false;
@@ -293,7 +521,7 @@ public class PhylogeneticTree {
                     }
                 }
             }
-            tree.nodes.removeAll(toRemove);
+            tree.removeNodes(toRemove);
         } while (changed);
         return changeMade;
     }
@@ -318,12 +546,22 @@ public class PhylogeneticTree {
         return false;
     }
 
+    public Set<Integer> getLeafTaxa() {
+        Set<Integer> taxa = new HashSet<>();
+        for (TreeNode node : nodes) {
+            if (node.isLeaf) {
+                taxa.add(node.taxon);
+            }
+        }
+        return taxa;
+    }
+
     public List<String> getLeafLabels() {
         List<String> labels = new ArrayList<>();
         for (TreeNode node : nodes) {
             if (node.isLeaf) {
                 
-                labels.add(new String(node.label));
+                labels.add(node.getLabel());
             }
         }
         return labels;
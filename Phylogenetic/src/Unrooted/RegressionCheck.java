@@ -0,0 +1,60 @@
+package Unrooted;
+
+/**
+ * Tree pairs on which an earlier version of a solver went wrong, with the distance the baseline solver
+ * (Chen's k loop before any pruning bounds) gives for them. Run with java Unrooted.RegressionCheck; it
+ * throws on the first pair where a bound overshoots or a solver disagrees. solveMinimum runs with
+ * checkMinimum, so a bound that prunes too much fails here even when the distance itself comes out right.
+ */
+public final class RegressionCheck {
+
+    // {T1, T2, distance}
+    private static final String[][] PAIRS = {
+        // A side subtree emptied by a cut on another conflict's path: cherry packing without the quartet
+        // legs counted 3 conflicts here.
+        {"(((1,2),3),((4,5),6),((7,8),9));", "(1,(2,3),((5,(4,6)),(8,(7,9))));", "2"},
+        {"((((1,2),3),((4,5),6),((7,8),9)),(((11,12),13),((14,15),16),((17,18),19)));",
+                "((1,(2,3),((5,(4,6)),(8,(7,9)))),(11,(12,13),((15,(14,16)),(18,(17,19)))));", "5"},
+    };
+
+    private RegressionCheck() {
+    }
+
+    public static void main(String[] args) {
+        for (String[] pair : PAIRS) {
+            Parser parser = new Parser();
+            PhylogeneticTree tree1 = parser.parse(pair[0]);
+            PhylogeneticTree tree2 = parser.parse(pair[1]);
+            int distance = Integer.parseInt(pair[2]);
+
+            Forest forest = new Forest();
+            forest.addComponent(tree2.copyTree());
+            check(pair, "ConflictBound.lowerBound", ConflictBound.lowerBound(tree1.copyTree(), forest), distance, true);
+            check(pair, "ChenAlgorithm.solve(k)", firstSolvable(tree1, tree2, distance), distance, false);
+            ChenAlgorithm chen = new ChenAlgorithm(tree1.copyTree(), tree2.copyTree());
+            chen.checkMinimum = true;
+            check(pair, "ChenAlgorithm.solveMinimum", chen.solveMinimum(30), distance, false);
+            SplitOrDecompose splitOrDecompose = new SplitOrDecompose(tree1.copyTree(), tree2.copyTree());
+            splitOrDecompose.checkMinimum = true;
+            check(pair, "SplitOrDecompose.solveMinimum", splitOrDecompose.solveMinimum(30), distance, false);
+        }
+        System.out.println(PAIRS.length + " regression pairs OK");
+    }
+
+    // Smallest k up to distance that Chen's plain solve(k) accepts, -1 if none.
+    private static int firstSolvable(PhylogeneticTree tree1, PhylogeneticTree tree2, int distance) {
+        for (int k = 0; k <= distance; k++) {
+            if (new ChenAlgorithm(tree1.copyTree(), tree2.copyTree()).solve(k)) {
+                return k;
+            }
+        }
+        return -1;
+    }
+
+    private static void check(String[] pair, String what, int value, int distance, boolean atMost) {
+        if (atMost ? value > distance : value != distance) {
+            throw new RuntimeException(what + " gave " + value + " on " + pair[0] + " " + pair[1]
+                    + ", distance is " + distance);
+        }
+    }
+}
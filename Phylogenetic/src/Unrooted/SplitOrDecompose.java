@@ -2,12 +2,12 @@ package Unrooted;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.IntSupplier;
 
 public class SplitOrDecompose {
 
@@ -15,12 +15,25 @@ public class SplitOrDecompose {
     private Forest F;           // The forest (current decomposition)
     private int solutionCount = 0;
     private static final int MAX_SOLUTIONS = 1;
+    private final MutationLog log = new MutationLog(); // branches mutate in place and roll back to a mark
+    private boolean pruning = true; // lower bounds cut branches (off only in checkMinimum's search)
+    private FailedStates failed; // states known to fail in the current call (across all budgets in solveMinimum)
+    private final List<int[]> removed = new ArrayList<>(); // taxon sets removed as singletons on the current path
+    private List<int[]> solution; // taxon sets of the components of the first agreement forest found
+    private boolean gaveUp; // the last solveMinimum hit its recursion limit
 
     public int splitFunctioned = 0;
     public int splitCounter = 0;
     public int recursionCounter = 0;
     public int decompositionCounter = 0;
     public int decompositionFunctioned = 0;
+    public int decompositionRejected = 0; // decompositions whose joined solution was not an agreement forest
+    public int boundSamples = ConvexBound.SEARCH_SAMPLES; // characters sampled for the lower bound at each node (0: off)
+    public boolean checkMinimum = false; // debugging: solveMinimum confirms, unpruned, that the budget below its answer fails
+    public int boundCuts = 0; // branches cut off because the lower bound exceeded the budget
+    public int conflictCuts = 0; // branches cut off because the conflicting-cherry bound exceeded the budget
+    public int pathCuts = 0; // path splits skipped because cutting the side edges alone exceeds the budget
+    public int decisions = 0; // decision searches (one budget each) run by solveMinimum
 
     public SplitOrDecompose(PhylogeneticTree Tfirst, PhylogeneticTree Tprime) {
         this.Tfirst = Tfirst;
@@ -29,149 +42,337 @@ public class SplitOrDecompose {
     }
 
     public boolean solve(int k){
-        return solve(Tfirst.copyTree(), F.copyForest(), k, true);
+        // Everything the search allocates from the arena is handed back in one step when it returns.
+        NodeArena arena = NodeArena.get();
+        long scope = arena.open();
+        failed = new FailedStates();
+        Forest forest = F.copyForest();
+        try {
+            return solve(Tfirst.copyTree(), forest, k, true);
+        } finally {
+            forest.release(); // F's components are no longer shared with the working copy
+            log.clear();
+            removed.clear();
+            arena.close(scope);
+            failed = null;
+        }
+    }
+
+    // Smallest k <= maxK for which solve(k) succeeds, or -1 if there is none; getSolution() then holds a
+    // witness. The instance is copied and reduced once; Chen's greedy dive bounds k from above and the root
+    // lower bounds from below, and BudgetSearch runs only the budgets needed in between. States that failed
+    // stay known for the other budgets.
+    public int solveMinimum(int maxK) {
+        return solveMinimum(maxK, Integer.MAX_VALUE);
+    }
+
+    // As above, but gives up (returning -1) once a single budget has taken more than maxRecursions calls.
+    public int solveMinimum(int maxK, int maxRecursions) {
+        ChenAlgorithm heuristic = new ChenAlgorithm(Tfirst.copyTree(), F.components.get(0).copyTree());
+        int highest = heuristic.upperBound();
+        NodeArena arena = NodeArena.get();
+        long scope = arena.open();
+        failed = new FailedStates();
+        solution = heuristic.getSolution();
+        gaveUp = false;
+        Forest forest = F.copyForest();
+        try {
+            PhylogeneticTree T_local = Tfirst.copyTree();
+            T_local.setLog(log);
+            forest.setLog(log);
+            reduce(T_local, forest);
+            int mark = log.mark();
+            int lowest = ConflictBound.lowerBound(T_local, forest); // no smaller budget can succeed
+            if (boundSamples > 0) {
+                lowest = Math.max(lowest, rootBound(T_local, forest));
+            }
+            int k = BudgetSearch.minimum(Math.min(lowest, highest), Math.min(highest, maxK + 1),
+                    budget -> decide(T_local, forest, budget, mark, maxRecursions),
+                    checkMinimum ? budget -> unpruned(() -> decide(T_local, forest, budget, mark, maxRecursions)) : null);
+            if (k == BudgetSearch.GAVE_UP) {
+                gaveUp = true;
+                return -1;
+            }
+            return k <= maxK ? k : -1;
+        } finally {
+            forest.release();
+            log.clear();
+            removed.clear();
+            arena.close(scope);
+            failed = null;
+        }
+    }
+
+    // One decision search from the reduced root state (undone afterwards): the cuts of the agreement forest
+    // found within budget k, which then replaces the solution, -1 if there is none (the solution stays), or
+    // GAVE_UP if it took more than maxRecursions calls.
+    private int decide(PhylogeneticTree T_local, Forest forest, int k, int mark, int maxRecursions) {
+        decisions++;
+        List<int[]> previous = solution;
+        solution = null;
+        int before = recursionCounter;
+        boolean found = solve(T_local, forest, k, true);
+        log.undo(mark);
+        if (found) {
+            return solution.size() - 1;
+        }
+        solution = previous;
+        return recursionCounter - before > maxRecursions ? BudgetSearch.GAVE_UP : -1;
+    }
+
+    // One decision search with the lower bounds off and its own failed-state table, since states that failed
+    // under the bounds may have failed only because of them.
+    private int unpruned(IntSupplier search) {
+        FailedStates kept = failed;
+        failed = new FailedStates();
+        pruning = false;
+        try {
+            return search.getAsInt();
+        } finally {
+            pruning = true;
+            failed = kept;
+        }
+    }
+
+    // True if the last solveMinimum returned -1 because a budget took too many recursions, not for lack of a solution.
+    public boolean gaveUp() {
+        return gaveUp;
     }
 
+    // Taxon sets of the components of the first agreement forest found, or null if there is none yet.
+    public List<int[]> getSolution() {
+        return solution;
+    }
+
+    // Labels ("1_2_5" for merged taxa) of the first solution found, or null if there is none yet.
+    public List<String> getSolutionLabels() {
+        if (solution == null) {
+            return null;
+        }
+        List<String> labels = new ArrayList<>();
+        for (int[] taxa : solution) {
+            labels.add(TreeUtils.formatTaxa(taxa, Tfirst));
+        }
+        return labels;
+    }
+
+    // The first solution as a forest: Tprime restricted to each of its taxon sets, or null.
+    public Forest getWitnessForest() {
+        return solution == null ? null : TreeUtils.restrictToBlocks(F.components.get(0), solution);
+    }
+
+    // T_local and forest are changed in place; the caller undoes the changes through the log.
     public boolean solve(PhylogeneticTree T_local, Forest forest, int k , boolean allowDecompose) {
         recursionCounter++;
-    
-        // === REDUCTION PHASE ===
+        T_local.setLog(log);
+        forest.setLog(log);
+        int removedBefore = removed.size();
+        try {
+            reduce(T_local, forest);
+
+            // === BASE CASE ===
+            if (k < 0) return false; // too many cuts used
+
+            long key = FailedStates.key(T_local, forest, allowDecompose);
+            if (failed != null && failed.hasFailed(key, k)) {
+                return false;
+            }
+            boolean found = !exceedsBudget(T_local, forest, k, key) && branch(T_local, forest, k, allowDecompose);
+            if (!found && failed != null) {
+                failed.recordFailure(key, k);
+            }
+            return found;
+        } finally {
+            removed.subList(removedBefore, removed.size()).clear();
+        }
+    }
+
+    // Lower bound for the whole instance, from many characters sampled in parallel.
+    private static int rootBound(PhylogeneticTree T_local, Forest forest) {
+        return ConvexBound.lowerBound(T_local, forest, ConvexBound.ROOT_SAMPLES, FailedStates.key(T_local, forest, true));
+    }
+
+    // True if a lower bound (conflicting cherries, then convex characters) shows that k more cuts are not enough.
+    private boolean exceedsBudget(PhylogeneticTree T_local, Forest forest, int k, long key) {
+        if (!pruning) {
+            return false;
+        }
+        if (ConflictBound.lowerBound(T_local, forest) > k) {
+            conflictCuts++; // the near-linear bound first; the sampled one only when it is not enough
+            return true;
+        }
+        if (boundSamples > 0 && ConvexBound.lowerBound(T_local, forest, boundSamples, key) > k) {
+            boundCuts++;
+            return true;
+        }
+        return false;
+    }
+
+    // === REDUCTION PHASE ===
+    private void reduce(PhylogeneticTree T_local, Forest forest) {
         while (true) {
             boolean changed = false;
     
             // Suppress degree-2 nodes in T_local and all forest components
             if (T_local.suppressDegree2Nodes()) changed = true;
-            for (PhylogeneticTree tree : forest.components) {
-                if (tree.suppressDegree2Nodes()) changed = true;
-            }
+            if (forest.suppressDegree2Nodes()) changed = true;
     
             // Remove singleton components from the forest and corresponding leaves from T
-            List<String> deleted = TreeUtils.removeSingletons(forest, T_local);
+            List<int[]> deleted = TreeUtils.removeSingletons(forest, T_local);
             if (!deleted.isEmpty()) changed = true;
+            removed.addAll(deleted);
     
             // Reduce common cherries between T and F'
             if (TreeUtils.findAndReduceCommonCherries(forest, T_local)) changed = true;
     
             if (!changed) break; // Exit when no more reductions apply
         }
-    
-        // === BASE CASE ===
-        if (k < 0) return false; // too many cuts used
-        
+    }
 
+    // Split, decompose or branch on a cherry of the reduced instance.
+    private boolean branch(PhylogeneticTree T_local, Forest forest, int k, boolean allowDecompose) {
         // === SPLIT PHASE ===
+        // One pass over T_local finds every overlapping pair, in the order of the old pairwise loop over i < j
         List<PhylogeneticTree> components = forest.components;
-        for (int i = 0; i < components.size(); i++) {
-            for (int j = i + 1; j < components.size(); j++) {
-                PhylogeneticTree comp1 = components.get(i);
-                PhylogeneticTree comp2 = components.get(j);
-    
-                List<String> leaves1 = comp1.getLeafLabels();
-                List<String> leaves2 = comp2.getLeafLabels();
-    
-                List<TreeNode> overlappingEdge = getFirstOverlappingEdge(T_local, leaves1, leaves2);
+        Overlaps overlaps = Overlaps.of(T_local, components);
+        for (int p = 0; p < overlaps.pairs() && k != 0; p++) {
+            PhylogeneticTree comp1 = components.get(overlaps.first(p));
+            PhylogeneticTree comp2 = components.get(overlaps.second(p));
+
+            // Split phase: create two branching scenarios
+            List<TreeNode> overlappingEdge = overlaps.sharedEdge(p, 0);
+            TreeNode u = overlappingEdge.get(0);
+            TreeNode v = overlappingEdge.get(1);
+
+            long[] Y = getLeavesFrom(u, v);
+            long[] Z = getLeavesFrom(v, u);
+
+            if (LeafBits.isEmpty(Y) || LeafBits.isEmpty(Z) || LeafBits.intersects(Y, Z)) {
+                System.err.println("Invalid bipartition in split: skipping.");
+                continue;
+            }
+            
+            splitCounter++;
 
-                if (overlappingEdge != null && k != 0) {
+            int mark = log.mark();
 
-                    // Split phase: create two branching scenarios
-                    TreeNode u = overlappingEdge.get(0);
-                    TreeNode v = overlappingEdge.get(1);
-    
-                    Set<String> Y = getLeavesFrom(u, v);
-                    Set<String> Z = getLeavesFrom(v, u);
-    
-                    if (Y.isEmpty() || Z.isEmpty() || !Collections.disjoint(Y, Z)) {
-                        System.err.println("Invalid bipartition in split: skipping.");
-                        continue;
-                    }
-                    
-                    splitCounter++;
+            // Branch A: Cut comp1 (recursivelySplitting changes it, so take a private copy if shared)
+            comp1 = forest.writable(comp1);
+            forest.removeComponent(comp1);
+            boolean branchA = recursivelySplitting(comp1, forest, Y, Z, k, T_local);
+            log.undo(mark);
 
-                    // Branch A: Cut comp1
-                    Forest f1 = new Forest();
-                    Map<PhylogeneticTree, PhylogeneticTree> mapA = forest.copyForestWithMapping(f1);
-                    PhylogeneticTree compF1 = mapA.get(comp1);
-                    f1.removeComponent(compF1);
-                    boolean branchA = recursivelySplitting(compF1, f1, Y, Z, k, T_local);
+            // Branch B: Cut comp2
+            comp2 = forest.writable(comp2);
+            forest.removeComponent(comp2);
+            boolean branchB = recursivelySplitting(comp2, forest, Z, Y, k, T_local);
+            log.undo(mark);
 
-                    
-    
-                    // Branch B: Cut comp2
-                    Forest f2 = new Forest();
-                    Map<PhylogeneticTree, PhylogeneticTree> mapB = forest.copyForestWithMapping(f2);
-                    PhylogeneticTree compF2 = mapB.get(comp2);
-                    f2.removeComponent(compF2);
-                    boolean branchB = recursivelySplitting(compF2, f2, Z, Y, k, T_local);
-
-                    if(branchA || branchB){
-                        splitFunctioned++;
-                    }
-    
-                    return branchA || branchB;
-                }
+            if(branchA || branchB){
+                splitFunctioned++;
             }
+
+            return branchA || branchB;
         }
     
         // === DECOMPOSITION PHASE ===
-        if (allowDecompose && hasOverlap(T_local.copyTree(), forest.copyForest())) {
+        // Both only read T_local and the forest (sub-instances are solved on copies), so no copies here
+        if (allowDecompose && !overlaps.isEmpty()) { // nothing changed since the split phase
             decompositionCounter++;
-            if (tryDecompositionOnDisjointForest(T_local.copyTree(), forest.copyForest(), k)) {
-                decompositionFunctioned++;
-                return true;
+            List<int[]> parts = new ArrayList<>();
+            if (tryDecompositionOnDisjointForest(T_local, forest, k, parts)) {
+                if (isWitness(parts)) {
+                    decompositionFunctioned++;
+                    recordSolution(parts);
+                    return true;
+                }
+                decompositionRejected++; // not a solution after all: branch on cherries as without it
             }
         }
     
         // === CHERRY BRANCHING PHASE (Chen style) ===
-        List<List<TreeNode>> cherries = TreeUtils.findCherries(T_local);
-        if (!cherries.isEmpty()) {
-            TreeNode a = cherries.get(0).get(0);
-            TreeNode b = cherries.get(0).get(1);
+        List<TreeNode> cherry = T_local.firstCherry(); // from the live cherry index, no scan
+        if (cherry != null) {
+            TreeNode a = cherry.get(0);
+            TreeNode b = cherry.get(1);
     
-            if (inDifferentComponents(forest, a.label, b.label)) {
+            if (inDifferentComponents(forest, a.taxon, b.taxon)) {
                 // Cut either a or b
-                Forest f1 = forest.copyForest();
-                f1.cutOff(a.label);
-                Forest f2 = forest.copyForest();
-                f2.cutOff(b.label);
-    
-                return solve(T_local.copyTree(), f1, k - 1,true)
-                    || solve(T_local.copyTree(), f2, k - 1,true);
+                int mark = log.mark();
+                forest.cutOff(a.taxon);
+                boolean found = solve(T_local, forest, k - 1,true);
+                log.undo(mark);
+                if (found) {
+                    return true;
+                }
+
+                forest.cutOff(b.taxon);
+                found = solve(T_local, forest, k - 1,true);
+                log.undo(mark);
+                return found;
             } else {
-                return applyChenBranching(T_local.copyTree(), forest.copyForest(), a.label, b.label, k);
+                return applyChenBranching(T_local, forest, a.taxon, b.taxon, k);
             }
         }
     
         // === FINAL CHECK ===
         if (TreeUtils.isAgreementForest(T_local, forest)) {
+            recordSolution(componentTaxa(forest.components));
             solutionCount++;
             return true;
         }
         return false;
     }
 
-    private boolean hasOverlap(PhylogeneticTree T_local, Forest forest){
+    // Keeps the first agreement forest found: the singletons removed on the way here, then the given parts.
+    private void recordSolution(List<int[]> parts) {
+        if (solution == null) {
+            solution = new ArrayList<>(removed);
+            solution.addAll(parts);
+        }
+    }
 
-        List<PhylogeneticTree> components = forest.components;
-        for (int i = 0; i < components.size(); i++) {
-            for (int j = i + 1; j < components.size(); j++) {
-                PhylogeneticTree comp1 = components.get(i);
-                PhylogeneticTree comp2 = components.get(j);
-    
-                List<String> leaves1 = comp1.getLeafLabels();
-                List<String> leaves2 = comp2.getLeafLabels();
-    
-                List<TreeNode> overlappingEdge = getFirstOverlappingEdge(T_local, leaves1, leaves2);
+    // True if the singletons removed on the way here and the given parts form an agreement forest of the
+    // input pair. The decomposition phase joins sub-solutions that need not fit together, so its answers are
+    // checked before they are taken.
+    private boolean isWitness(List<int[]> parts) {
+        List<int[]> blocks = new ArrayList<>(removed);
+        blocks.addAll(parts);
+        PhylogeneticTree Tprime = F.components.get(0);
+        Forest first = TreeUtils.restrictToBlocks(Tprime, blocks);
+        Forest second = TreeUtils.restrictToBlocks(Tfirst, blocks);
+        return leafCount(first) == LeafBits.cardinality(Tfirst.getLeafBits())
+                && AgreementCheck.isAgreementForest(Tfirst, first)
+                && AgreementCheck.isAgreementForest(Tprime, second);
+    }
 
-                if (overlappingEdge != null) {
-                    return true;
+    private static int leafCount(Forest forest) {
+        int count = 0;
+        for (PhylogeneticTree component : forest.components) {
+            count += LeafBits.cardinality(component.getLeafBits());
+        }
+        return count;
+    }
+
+    // Taxa of each component's leaves (merged leaves stand for several).
+    private static List<int[]> componentTaxa(List<PhylogeneticTree> components) {
+        List<int[]> parts = new ArrayList<>();
+        for (PhylogeneticTree component : components) {
+            int[] combined = new int[0];
+            for (TreeNode node : component.nodes) {
+                if (node.isLeaf) {
+                    combined = TreeUtils.unionTaxa(combined, node.taxa);
                 }
             }
+            if (combined.length > 0) {
+                parts.add(combined);
+            }
         }
-
-        return false;
+        return parts;
     }
-    
-    private boolean tryDecompositionOnDisjointForest(PhylogeneticTree T_local, Forest forest, int k) {
+
+    // Solutions of the components solved on their own are added to parts.
+    private boolean tryDecompositionOnDisjointForest(PhylogeneticTree T_local, Forest forest, int k, List<int[]> parts) {
         // Base cases
         if (k < 0) return false;
         if (forest.components.isEmpty()) return true;
@@ -186,9 +387,10 @@ public class SplitOrDecompose {
         Forest unsolved = new Forest(); // components that said "NO" with budget a
     
         for (PhylogeneticTree comp : forest.components) {
-            // Build the embedding for just this component
-            List<String> leaves = comp.getLeafLabels();
-            PhylogeneticTree embedding = T_local.getEmbedding(leaves).getRestriction().copyTree();
+            // Build the embedding for just this component, and the kernel of the two
+            long[] leaves = comp.getLeafBits();
+            PhylogeneticTree embedding = Embedding.of(T_local, leaves).restriction();
+            Kernel kernel = new Kernel(embedding, comp);
     
             // Single-component forest to query the solver
             Forest single = new Forest();
@@ -200,7 +402,7 @@ public class SplitOrDecompose {
             // IMPORTANT: try up to and including 'a'
             for (int j = 0; j <= a; j++) {
                 
-                if (solve(embedding.copyTree(),comp.copyTree() ,j)) {
+                if (solve(kernel, embedding, comp, j, parts)) {
                     ok = true;
                     used = j;   // minimal j we found
                     break;
@@ -221,86 +423,67 @@ public class SplitOrDecompose {
         if (unsolved.components.isEmpty()) return true;
     
         // Recurse on the NO components with the remaining budget
-        return tryDecompositionOnDisjointForest(T_local, unsolved, k - spent);
+        return tryDecompositionOnDisjointForest(T_local, unsolved, k - spent, parts);
         
     }
     
-    public boolean recursivelySplitting(PhylogeneticTree component, Forest fullForest, Set<String> Y, Set<String> Z, int k , PhylogeneticTree T_local) {
+    public boolean recursivelySplitting(PhylogeneticTree component, Forest fullForest, long[] Y, long[] Z, int k , PhylogeneticTree T_local) {
        
         if (k == 0) {
             return false;
         }
 
+        // component is not part of fullForest; both are changed in place and restored before returning
+        int mark = log.mark();
         component.suppressDegree2Nodes();
 
-        Forest newForest1 = fullForest.copyForest();
-        PhylogeneticTree copyComp1 = new PhylogeneticTree();
-        copyComp1 = component.copyTree();
-        newForest1.addComponent(copyComp1);
-            
-        if(TreeUtils.isAgreementForest(T_local.copyTree(), newForest1)){
+        fullForest.addComponent(component);
+        boolean agreement = TreeUtils.isAgreementForest(T_local, fullForest);
+        if (agreement) {
+            recordSolution(componentTaxa(fullForest.components));
+        }
+        fullForest.removeComponent(component);
+        if(agreement){
+            log.undo(mark);
             return true;
         }
 
         if(component.isCherry()){
-            if(component.nodes.size() == 2){ 
-                Forest newForest = fullForest.copyForest();
-                PhylogeneticTree copyComp = new PhylogeneticTree();
-                Map<TreeNode, TreeNode> nodeMap = component.copyTreeWithMapping(copyComp);
-                TreeNode u = nodeMap.get(component.nodes.get(0));
-                TreeNode v = nodeMap.get(component.nodes.get(1));
-                List<PhylogeneticTree> split = copyComp.splitIntoTwo(u, v);
-    
-                if (split.size() != 2) {
-                    System.err.println("Missing cut operation here !!!");
-                    System.out.println(split.size());
-                }
-
-                newForest.addComponent(split.get(0));
-                newForest.addComponent(split.get(1));
-
-                return solve(T_local.copyTree(), newForest, k - 1,false);
-
-            }
-            if(component.nodes.size() == 3){
-                Forest newForest = fullForest.copyForest();
-                PhylogeneticTree copyComp = new PhylogeneticTree();
-                Map<TreeNode, TreeNode> nodeMap = component.copyTreeWithMapping(copyComp);
-                TreeNode u = nodeMap.get(component.nodes.get(0));
-                TreeNode v = nodeMap.get(component.nodes.get(1));
-                List<PhylogeneticTree> split = copyComp.splitIntoTwo(u, v);
+            if(component.nodes.size() == 2 || component.nodes.size() == 3){ 
+                TreeNode u = component.nodes.get(0);
+                TreeNode v = component.nodes.get(1);
+                List<PhylogeneticTree> split = component.splitIntoTwo(u, v);
     
                 if (split.size() != 2) {
                     System.err.println("Missing cut operation here !!!");
                     System.out.println(split.size());
                 }
 
-                newForest.addComponent(split.get(0));
-                newForest.addComponent(split.get(1));
+                fullForest.addComponent(split.get(0));
+                fullForest.addComponent(split.get(1));
 
-                return solve(T_local.copyTree(), newForest, k - 1,false);
+                boolean result = solve(T_local, fullForest, k - 1,false);
+                log.undo(mark);
+                return result;
             }
         }
     
         for (TreeNode center : component.nodes) {
             if (center.isLeaf) continue;
 
-            Map<TreeNode, Set<String>> neighborToLabels = new HashMap<>();
+            Map<TreeNode, long[]> neighborToLabels = new HashMap<>();
             for (TreeNode neighbor : center.neighbors) {
-                Set<String> reachable = new HashSet<>();
-                Set<TreeNode> visited = new HashSet<>();
-                dfsExclude(neighbor, center, visited, reachable);
-                neighborToLabels.put(neighbor, reachable);
+                neighborToLabels.put(neighbor, getLeavesFrom(neighbor, center));
             }
     
             List<TreeNode> yOnly = new ArrayList<>();
             List<TreeNode> zOnly = new ArrayList<>();
             List<TreeNode> mixed = new ArrayList<>();
     
-            for (Map.Entry<TreeNode, Set<String>> entry : neighborToLabels.entrySet()) {
-                Set<String> labels = entry.getValue();
-                boolean allY = labels.stream().allMatch(Y::contains);
-                boolean allZ = labels.stream().allMatch(Z::contains);
+            for (Map.Entry<TreeNode, long[]> entry : neighborToLabels.entrySet()) {
+                long[] labels = entry.getValue();
+                boolean allY = LeafBits.isSubset(labels, Y);
+                boolean allZ = LeafBits.isSubset(labels, Z);
     
                 if (allY) yOnly.add(entry.getKey());
                 else if (allZ) zOnly.add(entry.getKey());
@@ -311,46 +494,42 @@ public class SplitOrDecompose {
             if (!yOnly.isEmpty() && !zOnly.isEmpty() && !mixed.isEmpty()) {
 
                 for (TreeNode toCut : yOnly) {
-                    Forest newForest = fullForest.copyForest();
-                    PhylogeneticTree copyComp = new PhylogeneticTree();
-                    Map<TreeNode, TreeNode> nodeMap = component.copyTreeWithMapping(copyComp);
-                    TreeNode u = nodeMap.get(toCut);
-                    TreeNode v = nodeMap.get(center);
-
                     if (!toCut.neighbors.contains(center)) continue;
-                    List<PhylogeneticTree> split = copyComp.splitIntoTwo(u, v);
+                    int cutMark = log.mark();
+                    List<PhylogeneticTree> split = component.splitIntoTwo(toCut, center);
                 
                     if (split.size() != 2) {
                         System.err.println("Missing cut operation here !!!");
                         System.out.println(split.size());
                     }
 
-                    newForest.addComponent(split.get(0));
+                    fullForest.addComponent(split.get(0));
                     
-                    if (recursivelySplitting(split.get(1), newForest, Y, Z, k - 1, T_local.copyTree())) {
+                    boolean found = recursivelySplitting(split.get(1), fullForest, Y, Z, k - 1, T_local);
+                    log.undo(cutMark);
+                    if (found) {
+                        log.undo(mark);
                         return true;
                     }
                                         
                 }
                 
                 for (TreeNode toCut : zOnly) {
-                    Forest newForest = fullForest.copyForest();
-                    PhylogeneticTree copyComp = new PhylogeneticTree();
-                    Map<TreeNode, TreeNode> nodeMap = component.copyTreeWithMapping(copyComp);
-                    TreeNode u = nodeMap.get(toCut);
-                    TreeNode v = nodeMap.get(center);
-                    
                     if (!toCut.neighbors.contains(center)) continue;
-                    List<PhylogeneticTree> split = copyComp.splitIntoTwo(u, v);
+                    int cutMark = log.mark();
+                    List<PhylogeneticTree> split = component.splitIntoTwo(toCut, center);
                     
                     if (split.size() != 2) {
                         System.err.println("Missing cut operation here !!!");
                         System.out.println(split.size());
                     }
                     
-                    newForest.addComponent(split.get(0));
+                    fullForest.addComponent(split.get(0));
 
-                    if (recursivelySplitting(split.get(1), newForest, Y, Z, k - 1, T_local.copyTree())) {
+                    boolean found = recursivelySplitting(split.get(1), fullForest, Y, Z, k - 1, T_local);
+                    log.undo(cutMark);
+                    if (found) {
+                        log.undo(mark);
                         return true;
                     }
                 }
@@ -375,27 +554,26 @@ public class SplitOrDecompose {
                     System.err.println("somethings are wrong!");
                 }
 
-                Forest newForest = fullForest.copyForest();
-                PhylogeneticTree copyComp = new PhylogeneticTree();
-                Map<TreeNode, TreeNode> nodeMap = component.copyTreeWithMapping(copyComp);
-                TreeNode u = nodeMap.get(toCut);
-                TreeNode v = nodeMap.get(center);
-
                 if (!toCut.neighbors.contains(center)) continue;
-                List<PhylogeneticTree> split = copyComp.splitIntoTwo(u, v);
+                int cutMark = log.mark();
+                List<PhylogeneticTree> split = component.splitIntoTwo(toCut, center);
     
                 if (split.size() != 2) {
                     System.err.println("Missing cut operation here !!!");
                     System.out.println(split.size());
                 }
-                newForest.addComponent(split.get(0));
-                newForest.addComponent(split.get(1));
+                fullForest.addComponent(split.get(0));
+                fullForest.addComponent(split.get(1));
 
-                if (solve(T_local.copyTree(), newForest, k - 1,false)) {
+                boolean found = solve(T_local, fullForest, k - 1,false);
+                log.undo(cutMark);
+                if (found) {
+                    log.undo(mark);
                     return true;
                 } 
             }
         }
+        log.undo(mark);
         return false;
     }
     
@@ -420,89 +598,48 @@ public class SplitOrDecompose {
         }
     }
     
-    public static List<TreeNode> getFirstOverlappingEdge(PhylogeneticTree T, List<String> leaves1, List<String> leaves2) {
-        List<List<TreeNode>> edges1 = new ArrayList<>(TreeUtils.getOriginalEdgesInEmbedding(T, leaves1));
-        List<List<TreeNode>> edges2 = new ArrayList<>(TreeUtils.getOriginalEdgesInEmbedding(T, leaves2));
-    
-        for (List<TreeNode> e1 : edges1) {
-            TreeNode e1a = e1.get(0);
-            TreeNode e1b = e1.get(1);
-    
-            for (List<TreeNode> e2 : edges2) {
-                TreeNode e2a = e2.get(0);
-                TreeNode e2b = e2.get(1);
-    
-                boolean match =
-                    (e1a == e2a && e1b == e2b) ||
-                    (e1a == e2b && e1b == e2a);
-    
-                if (match) {
-                    return e1;
-                }
-            }
-        }
-    
-        return null;
+    // First edge shared by the embeddings of the two leaf sets in T, or null if they are disjoint.
+    public static List<TreeNode> getFirstOverlappingEdge(PhylogeneticTree T, long[] leaves1, long[] leaves2) {
+        Overlaps overlaps = Overlaps.of(T, leaves1, leaves2);
+        return overlaps.isEmpty() ? null : overlaps.sharedEdge(0, 0);
     }
 
     //     This method will give us:
-    // Y = all leaf labels reachable from u without going through v
-    // Z = all leaf labels reachable from v without going through u
+    // Y = all leaf taxa reachable from u without going through v
+    // Z = all leaf taxa reachable from v without going through u
     // That’s our bipartition.
-    public Set<String> getLeavesFrom(TreeNode start, TreeNode block) {
-        Set<String> result = new HashSet<>();
-        Set<TreeNode> visited = new HashSet<>();
-        dfsExclude(start, block, visited, result);
-        return result;
-    }
-    
-    private void dfsExclude(TreeNode current, TreeNode block, Set<TreeNode> visited, Set<String> leaves) {
-        visited.add(current);
-        if (current.isLeaf && current.label != null) {
-            leaves.add(current.label);
-        }
-        for (TreeNode neighbor : current.neighbors) {
-            if (!visited.contains(neighbor) && neighbor != block) {
-                dfsExclude(neighbor, block, visited, leaves);
-            }
-        }
+    public long[] getLeavesFrom(TreeNode start, TreeNode block) {
+        return Traversal.get().leafBits(start, block);
     }
 
     // Chen branching: branch on cutting off a, cutting off b, or splitting the path between a and b.
-    private boolean applyChenBranching(PhylogeneticTree T_local, Forest forest, String a, String b, int k) {
+    private boolean applyChenBranching(PhylogeneticTree T_local, Forest forest, int a, int b, int k) {
+
+        int mark = log.mark();
 
         //Branch 1: Cut off a.
-        Forest copy1 = forest.copyForest(); 
-        copy1.cutOff(a);
-        boolean branch1 = solve(T_local.copyTree(), copy1, k - 1,true);
+        forest.cutOff(a);
+        boolean branch1 = solve(T_local, forest, k - 1,true);
+        log.undo(mark);
 
         // Branch 2: Cut off b.
-        Forest copy2 = forest.copyForest();
-        copy2.cutOff(b);
-        boolean branch2 = solve(T_local.copyTree(), copy2, k - 1,true);
+        forest.cutOff(b);
+        boolean branch2 = solve(T_local, forest, k - 1,true);
+        log.undo(mark);
 
         //Branch 3: Split the path between a and b.
-        Forest copy3 = forest.copyForest();
-        boolean branch3 = splitPath(T_local.copyTree(), copy3, a, b, k);
+        boolean branch3 = splitPath(T_local, forest, a, b, k);
+        log.undo(mark);
         
         //return branch2 || branch1;
         return branch1 || branch2 || branch3 ;
         //return branch3;
     }
 
-    // Check whether nodes with labels a and b are in different forest components.
-    private boolean inDifferentComponents(Forest forest, String a, String b) {
-        PhylogeneticTree compA = null;
-        PhylogeneticTree compB = null;
-        
-        for (PhylogeneticTree tree : forest.components) {
-            if (TreeUtils.findLeafByLabel(tree, a) != null) {
-                compA = tree;
-            }
-            if (TreeUtils.findLeafByLabel(tree, b) != null) {
-                compB = tree;
-            }
-        }
+    // Check whether leaves with taxon ids a and b are in different forest components.
+    private boolean inDifferentComponents(Forest forest, int a, int b) {
+        PhylogeneticTree compA = forest.componentOfLeaf(a);
+        PhylogeneticTree compB = forest.componentOfLeaf(b);
         
         if (compA == null || compB == null) {
             forest.printForest();
@@ -513,33 +650,29 @@ public class SplitOrDecompose {
         return (compA != compB);
     }
 
-    // Split the path between nodes with labels aLabel and bLabel.
+    // Split the path between the leaves with taxon ids aTaxon and bTaxon.
     // This branch tries all choices of keeping one side edge and cutting the others.
-    // Split the path between nodes with labels aLabel and bLabel.
-    // This branch tries all choices of keeping one side edge and cutting the others.
-    private boolean splitPath(PhylogeneticTree T_local, Forest forest, String aLabel, String bLabel, int k )  {
-        TreeNode a = null;
-        TreeNode b = null;
-        PhylogeneticTree component = null;
-
-        for (PhylogeneticTree tree : forest.components) {
-            a = TreeUtils.findLeafByLabel(tree, aLabel);
-            b = TreeUtils.findLeafByLabel(tree, bLabel);
-            if(a != null && b!= null) {
-                component = tree;
-                break;
+    private boolean splitPath(PhylogeneticTree T_local, Forest forest, int aTaxon, int bTaxon, int k )  {
+        PhylogeneticTree component = forest.inSameComponent(aTaxon, bTaxon) ? forest.componentOfLeaf(aTaxon) : null;
+        if (component != null) {
+            if (ConflictBound.splitCost(component, component.findLeaf(aTaxon), component.findLeaf(bTaxon)) > k) {
+                pathCuts++; // every choice of kept side edge overspends: skip before copying anything
+                return false;
             }
+            component = forest.writable(component); // path and side-edge nodes must stay valid across the cuts
         }
+        TreeNode a = component != null ? component.findLeaf(aTaxon) : null;
+        TreeNode b = component != null ? component.findLeaf(bTaxon) : null;
 
         if (a == null || b == null) {
-            throw new RuntimeException("Nodes with label a or b not found in any component!");
+            throw new RuntimeException("Leaves with taxon a or b not found in any component!");
         }
         if (component == null) {
             throw new RuntimeException("Nodes a and b are not in the same component!");
         }
 
         // Find the unique path between a and b.
-        List<TreeNode> path = TreeUtils.findPath(a, b, new ArrayList<>(), new ArrayList<>()); 
+        List<TreeNode> path = component.findPath(a, b);
         if (path == null) {
             throw new RuntimeException("No path found between a and b!");
         }
@@ -570,9 +703,9 @@ public class SplitOrDecompose {
 
             forest.mergeEdge(u, v); // Reconnect
 
-            Forest forestCopy = forest.copyForest(); // Copy with merged edge
-
-            result |= solve(T_local.copyTree(), forestCopy, k - (sideEdges.size() - 1),true);
+            int mark = log.mark(); // state with merged edge
+            result |= solve(T_local, forest, k - (sideEdges.size() - 1),true);
+            log.undo(mark);
 
             // Disconnect again
             forest.cutEdgeInComponent(u, v);
@@ -586,4 +719,25 @@ public class SplitOrDecompose {
         ChenAlgorithm subAlg = new ChenAlgorithm(T_local.copyTree(), comp.copyTree());
         return subAlg.solve(k);
     }
+
+    // As above, on the kernel of the sub-instance (T_local, comp); on success the solution, over the original
+    // taxa, is added to parts. A kernel solution that does not map back is found again on the kernel without
+    // chain reductions.
+    private boolean solve(Kernel kernel, PhylogeneticTree T_local, PhylogeneticTree comp, int k, List<int[]> parts) {
+        ChenAlgorithm subAlg = new ChenAlgorithm(kernel.first.copyTree(), kernel.second.copyTree());
+        if (!subAlg.solve(k)) {
+            return false;
+        }
+        List<int[]> solution = kernel.expand(subAlg.getSolution());
+        if (solution == null) {
+            Kernel subtrees = new Kernel(T_local, comp, false);
+            subAlg = new ChenAlgorithm(subtrees.first.copyTree(), subtrees.second.copyTree());
+            if (!subAlg.solve(k)) {
+                return false;
+            }
+            solution = subtrees.expand(subAlg.getSolution());
+        }
+        parts.addAll(solution);
+        return true;
+    }
 }
\ No newline at end of file
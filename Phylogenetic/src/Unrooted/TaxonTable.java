@@ -0,0 +1,37 @@
+package Unrooted;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Dictionary giving every taxon label a dense int id (0, 1, 2, ...) in order of first appearance.
+// Trees, forests and solvers only compare ids; labels are looked up again only for printing.
+public class TaxonTable {
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final List<String> labels = new ArrayList<>();
+
+    public synchronized int intern(String label) {
+        Integer id = ids.get(label);
+        if (id == null) {
+            id = labels.size();
+            ids.put(label, id);
+            labels.add(label);
+        }
+        return id;
+    }
+
+    // Id of an already known label, or -1
+    public synchronized int idOf(String label) {
+        Integer id = ids.get(label);
+        return id == null ? -1 : id;
+    }
+
+    public synchronized String label(int id) {
+        return labels.get(id);
+    }
+
+    public synchronized int size() {
+        return labels.size();
+    }
+}
@@ -0,0 +1,148 @@
+package Unrooted;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Iterative traversals over TreeNode neighbour lists, for trees of any depth (caterpillars with thousands
+ * of taxa included) on the default thread stack. Each thread has one instance holding a reusable explicit
+ * stack; "visited" is a stamp on the node compared with the traversal's epoch, so nothing is cleared or
+ * allocated per call beyond the result. Epochs come from one process-wide counter, so stamps left by a
+ * traversal in another thread (e.g. a loader) can never look current.
+ *
+ * Every method walks the nodes reachable from start without stepping onto block (null for none), in the
+ * order a recursive DFS would: neighbours in list order, each node once.
+ */
+public final class Traversal {
+    private static final AtomicLong EPOCHS = new AtomicLong();
+    private static final ThreadLocal<Traversal> CURRENT = ThreadLocal.withInitial(Traversal::new);
+
+    private TreeNode[] stack = new TreeNode[64];
+    private int[] next = new int[64]; // next neighbour to visit for each stack entry
+
+    private Traversal() {
+    }
+
+    // The calling thread's traversal toolkit.
+    public static Traversal get() {
+        return CURRENT.get();
+    }
+
+    // A fresh epoch: no node is marked with it yet.
+    public static long newEpoch() {
+        return EPOCHS.incrementAndGet();
+    }
+
+    public static void mark(TreeNode node, long epoch) {
+        node.visit = epoch;
+    }
+
+    public static boolean isMarked(TreeNode node, long epoch) {
+        return node.visit == epoch;
+    }
+
+    // Nodes reachable from start, in depth-first preorder; each is left marked with the returned epoch.
+    public long depthFirst(TreeNode start, TreeNode block, List<TreeNode> out) {
+        long epoch = newEpoch();
+        mark(start, epoch);
+        out.add(start);
+        int top = push(0, start);
+        while (top >= 0) {
+            TreeNode neighbor = nextNeighbor(top, block, epoch);
+            if (neighbor == null) {
+                top--;
+            } else {
+                mark(neighbor, epoch);
+                out.add(neighbor);
+                top = push(top + 1, neighbor);
+            }
+        }
+        return epoch;
+    }
+
+    // Nodes reachable from start, in breadth-first order (out doubles as the queue).
+    public long breadthFirst(TreeNode start, TreeNode block, List<TreeNode> out) {
+        long epoch = newEpoch();
+        mark(start, epoch);
+        int head = out.size();
+        out.add(start);
+        while (head < out.size()) {
+            for (TreeNode neighbor : out.get(head++).neighbors) {
+                if (neighbor != block && !isMarked(neighbor, epoch)) {
+                    mark(neighbor, epoch);
+                    out.add(neighbor);
+                }
+            }
+        }
+        return epoch;
+    }
+
+    // Taxon ids of the leaves reachable from start, as a bitset (e.g. the leaves on start's side of the
+    // edge start-block).
+    public long[] leafBits(TreeNode start, TreeNode block) {
+        long epoch = newEpoch();
+        long[] leaves = addLeaf(LeafBits.EMPTY, start);
+        mark(start, epoch);
+        int top = push(0, start);
+        while (top >= 0) {
+            TreeNode neighbor = nextNeighbor(top, block, epoch);
+            if (neighbor == null) {
+                top--;
+            } else {
+                mark(neighbor, epoch);
+                leaves = addLeaf(leaves, neighbor);
+                top = push(top + 1, neighbor);
+            }
+        }
+        return leaves;
+    }
+
+    // Path from start to target (both included) as found by depth-first search, or null if target is not
+    // reachable. In a tree this is the unique path.
+    public List<TreeNode> path(TreeNode start, TreeNode target) {
+        long epoch = newEpoch();
+        mark(start, epoch);
+        int top = push(0, start);
+        while (top >= 0) {
+            if (stack[top] == target) {
+                return new ArrayList<>(Arrays.asList(stack).subList(0, top + 1));
+            }
+            TreeNode neighbor = nextNeighbor(top, null, epoch);
+            if (neighbor == null) {
+                top--;
+            } else {
+                mark(neighbor, epoch);
+                top = push(top + 1, neighbor);
+            }
+        }
+        return null;
+    }
+
+    private static long[] addLeaf(long[] leaves, TreeNode node) {
+        return node.isLeaf && node.taxon >= 0 ? LeafBits.add(leaves, node.taxon) : leaves;
+    }
+
+    // Next unvisited neighbour of stack[top] other than block, or null once all have been tried.
+    private TreeNode nextNeighbor(int top, TreeNode block, long epoch) {
+        List<TreeNode> neighbors = stack[top].neighbors;
+        while (next[top] < neighbors.size()) {
+            TreeNode neighbor = neighbors.get(next[top]++);
+            if (neighbor != block && !isMarked(neighbor, epoch)) {
+                return neighbor;
+            }
+        }
+        return null;
+    }
+
+    private int push(int top, TreeNode node) {
+        if (top == stack.length) {
+            stack = Arrays.copyOf(stack, top * 2);
+            next = Arrays.copyOf(next, top * 2);
+        }
+        stack[top] = node;
+        next[top] = 0;
+        return top;
+    }
+}
@@ -2,6 +2,7 @@ package Unrooted;
 
 public class TreeBuilder {
     private PhylogeneticTree tree;
+    private final TaxonTable taxa = new TaxonTable(); // shared by every tree this builder makes
 
     public TreeBuilder() {
         tree = new PhylogeneticTree();
@@ -121,7 +122,7 @@ public class TreeBuilder {
     }
 
     public TreeNode addLeaf(String label) {
-        TreeNode leaf = new TreeNode(label);
+        TreeNode leaf = new TreeNode(taxa.intern(label), label);
         leaf.isLeaf = true;
         tree.addNode(leaf);
         return leaf;
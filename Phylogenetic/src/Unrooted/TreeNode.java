@@ -4,21 +4,75 @@ import java.util.ArrayList;
 import java.util.List;
 
 public class TreeNode {
-    String label; // unique label 
+    String label; // taxon label, only used for printing and output; read it through getLabel()
+    int taxon = -1; // taxon id from the TaxonTable (-1 for internal nodes); all comparisons use this
+    int[] taxa; // sorted taxon ids this leaf stands for: {taxon} for an input leaf, the union for a merged cherry
+    private TreeNode[] parts; // the two leaves a merged cherry leaf replaced, until its label is built
     boolean isLeaf; // true if leaf (species), false if internal node
     List<TreeNode> neighbors;
+    PhylogeneticTree owner; // tree whose node list currently holds this node (kept by PhylogeneticTree)
+    int order; // stamp from the owner, increasing along its node list; orders the owner's cherry index
+    int pathSlot = -1; // slot in the last PathIndex that indexed this node (checked against that index)
+    long visit; // epoch of the last Traversal that reached this node
 
     TreeNode() {
         this.isLeaf = false;
         this.neighbors = new ArrayList<>();
     }
 
-    TreeNode(String label) {
+    TreeNode(int taxon, String label) {
+        this.taxon = taxon;
         this.label = label;
+        this.taxa = new int[] {taxon};
         this.isLeaf = true;
         this.neighbors = new ArrayList<>();
     }
 
+    // Leaf replacing the cherry {a, b}: keeps the smaller taxon id and the union of both taxon sets.
+    // The "1_2_5" label is only built if somebody asks for it.
+    static TreeNode merge(TreeNode a, TreeNode b) {
+        TreeNode merged = NodeArena.get().node();
+        merged.isLeaf = true;
+        merged.taxon = Math.min(a.taxon, b.taxon);
+        merged.taxa = TreeUtils.unionTaxa(a.taxa, b.taxa);
+        merged.parts = new TreeNode[] {a, b};
+        return merged;
+    }
+
+    // Copy of this leaf (taxon, taxon set and label) without neighbours.
+    TreeNode copyLeaf() {
+        return copyLeaf(NodeArena.get());
+    }
+
+    TreeNode copyLeaf(NodeArena arena) {
+        TreeNode copy = arena.node();
+        copy.isLeaf = true;
+        copy.taxon = taxon;
+        copy.label = label;
+        copy.taxa = taxa; // never modified in place, so it can be shared
+        copy.parts = parts;
+        return copy;
+    }
+
+    // Back to a blank internal node for NodeArena; the neighbour list is cleared, not reallocated.
+    void reset() {
+        label = null;
+        taxon = -1;
+        taxa = null;
+        parts = null;
+        isLeaf = false;
+        neighbors.clear();
+        owner = null;
+    }
+
+    public String getLabel() {
+        if (label == null && parts != null) {
+            label = TreeUtils.mergeLabels(parts[0].getLabel(), parts[1].getLabel());
+            parts = null;
+        }
+        return label;
+    }
+
     public void addNeighbours(TreeNode node){
         neighbors.add(node);
     }
@@ -30,7 +84,7 @@ public class TreeNode {
     public void printNeighbours(){
         for (int i = 0; i < neighbors.size(); i++) {
             if(neighbors.get(i).isLeaf){
-                System.out.print(neighbors.get(i).label + " ");
+                System.out.print(neighbors.get(i).getLabel() + " ");
             }
             else{
                 System.out.print("*" + " ");
@@ -0,0 +1,16 @@
+package Unrooted;
+
+// The two trees of one TREEPAIR_*.tree file, ready to be handed to a solver.
+public class TreePair {
+    public final String name; // base name of the file, without the .tree extension
+    public final PhylogeneticTree tree1;
+    public final PhylogeneticTree tree2;
+    public final TaxonTable taxa; // taxon ids shared by both trees
+
+    public TreePair(String name, PhylogeneticTree tree1, PhylogeneticTree tree2, TaxonTable taxa) {
+        this.name = name;
+        this.taxa = taxa;
+        this.tree1 = tree1;
+        this.tree2 = tree2;
+    }
+}
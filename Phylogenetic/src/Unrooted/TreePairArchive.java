@@ -0,0 +1,236 @@
+package Unrooted;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Binary archive of tree pairs, loaded through a memory-mapped buffer without any text parsing.
+ *
+ * Layout (big-endian, fixed-width ints):
+ *   header : MAGIC, VERSION, pairCount, then pairCount longs with the offset of every pair
+ *   pair   : name, taxonCount, taxonCount labels (label i has taxon id i), then two trees
+ *   tree   : nodeCount, nodeCount taxon ids (-1 for internal nodes), edgeCount, edgeCount (u, v) node indices
+ * Strings are stored as a byte length followed by UTF-8 bytes. Node order and neighbour order
+ * survive the round trip, so the solvers see exactly the trees that were written.
+ */
+public class TreePairArchive {
+
+    public static final String EXTENSION = ".tpa";
+    private static final int MAGIC = 0x54504152; // "TPAR"
+    private static final int VERSION = 1;
+
+    private final ByteBuffer buffer;
+    private final long[] offsets;
+
+    private TreePairArchive(ByteBuffer buffer) {
+        this.buffer = buffer;
+        if (buffer.getInt(0) != MAGIC) {
+            throw new IllegalArgumentException("Not a tree pair archive");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IllegalArgumentException("Unsupported archive version " + buffer.getInt(4));
+        }
+        int pairCount = buffer.getInt(8);
+        offsets = new long[pairCount];
+        for (int i = 0; i < pairCount; i++) {
+            offsets[i] = buffer.getLong(12 + 8 * i);
+        }
+    }
+
+    public static TreePairArchive open(String archivePath) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(archivePath), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Archive too large to map: " + archivePath);
+            }
+            return new TreePairArchive(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+        }
+    }
+
+    public int size() {
+        return offsets.length;
+    }
+
+    // Safe to call from several threads: every call reads through its own view of the mapping.
+    public TreePair get(int index) {
+        ByteBuffer in = buffer.duplicate();
+        in.position((int) offsets[index]);
+
+        String name = readString(in);
+        String[] labels = new String[in.getInt()];
+        TaxonTable taxa = new TaxonTable();
+        for (int i = 0; i < labels.length; i++) {
+            labels[i] = readString(in);
+            taxa.intern(labels[i]);
+        }
+        PhylogeneticTree tree1 = readTree(in, labels);
+        PhylogeneticTree tree2 = readTree(in, labels);
+        return new TreePair(name, tree1, tree2, taxa);
+    }
+
+    // Build every pair, in archive order, using all cores.
+    public List<TreePair> loadAll() {
+        return IntStream.range(0, offsets.length).parallel()
+                .mapToObj(this::get)
+                .collect(Collectors.toList());
+    }
+
+    private static PhylogeneticTree readTree(ByteBuffer in, String[] labels) {
+        PhylogeneticTree tree = new PhylogeneticTree();
+        TreeNode[] nodes = new TreeNode[in.getInt()];
+        for (int i = 0; i < nodes.length; i++) {
+            int taxon = in.getInt();
+            nodes[i] = taxon < 0 ? new TreeNode() : new TreeNode(taxon, labels[taxon]);
+            tree.addNode(nodes[i]);
+        }
+        int edgeCount = in.getInt();
+        for (int i = 0; i < edgeCount; i++) {
+            tree.addEdge(nodes[in.getInt()], nodes[in.getInt()]);
+        }
+        return tree;
+    }
+
+    private static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // === WRITING ===
+
+    public static void write(String archivePath, List<TreePair> pairs) throws IOException {
+        // Serialise every pair first so the offset table can be written up front
+        List<byte[]> records = new ArrayList<>();
+        for (TreePair pair : pairs) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            writePair(out, pair);
+            out.flush();
+            records.add(bytes.toByteArray());
+        }
+
+        try (OutputStream file = Files.newOutputStream(Paths.get(archivePath));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(records.size());
+            long offset = 12L + 8L * records.size();
+            for (byte[] record : records) {
+                out.writeLong(offset);
+                offset += record.length;
+            }
+            for (byte[] record : records) {
+                out.write(record);
+            }
+        }
+    }
+
+    private static void writePair(DataOutputStream out, TreePair pair) throws IOException {
+        // Taxon table: the pair's own dictionary, so taxon ids are stored as they are
+        writeString(out, pair.name);
+        out.writeInt(pair.taxa.size());
+        for (int id = 0; id < pair.taxa.size(); id++) {
+            writeString(out, pair.taxa.label(id));
+        }
+        writeTree(out, pair.tree1);
+        writeTree(out, pair.tree2);
+    }
+
+    private static void writeTree(DataOutputStream out, PhylogeneticTree tree) throws IOException {
+        Map<TreeNode, Integer> index = new IdentityHashMap<>();
+        out.writeInt(tree.nodes.size());
+        for (TreeNode node : tree.nodes) {
+            index.put(node, index.size());
+            out.writeInt(node.isLeaf ? node.taxon : -1);
+        }
+
+        List<int[]> edges = orderedEdges(tree, index);
+        out.writeInt(edges.size());
+        for (int[] edge : edges) {
+            out.writeInt(edge[0]);
+            out.writeInt(edge[1]);
+        }
+    }
+
+    // Order the edges so that replaying addEdge rebuilds every neighbour list in its original order:
+    // an edge is emitted once it is at the front of the remaining lists of both its endpoints.
+    private static List<int[]> orderedEdges(PhylogeneticTree tree, Map<TreeNode, Integer> index) {
+        int n = tree.nodes.size();
+        List<List<Integer>> remaining = new ArrayList<>(n);
+        for (TreeNode node : tree.nodes) {
+            List<Integer> adjacent = new ArrayList<>();
+            for (TreeNode neighbor : node.neighbors) {
+                adjacent.add(index.get(neighbor));
+            }
+            remaining.add(adjacent);
+        }
+
+        List<int[]> edges = new ArrayList<>();
+        boolean left = true;
+        while (left) {
+            left = false;
+            boolean progress = false;
+            for (int u = 0; u < n; u++) {
+                List<Integer> adjacentU = remaining.get(u);
+                while (!adjacentU.isEmpty()) {
+                    int v = adjacentU.get(0);
+                    List<Integer> adjacentV = remaining.get(v);
+                    if (adjacentV.isEmpty() || adjacentV.get(0) != u) {
+                        left = true;
+                        break;
+                    }
+                    edges.add(new int[] {u, v});
+                    adjacentU.remove(0);
+                    adjacentV.remove(0);
+                    progress = true;
+                }
+            }
+            if (left && !progress) {
+                // Neighbour orders are not consistent with any edge order; emit one edge anyway
+                for (int u = 0; u < n; u++) {
+                    if (!remaining.get(u).isEmpty()) {
+                        int v = remaining.get(u).remove(0);
+                        remaining.get(v).remove(Integer.valueOf(u));
+                        edges.add(new int[] {u, v});
+                        break;
+                    }
+                }
+            }
+        }
+        return edges;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    // Converter: java Unrooted.TreePairArchive <datasetDir> <archive.tpa>
+    public static void main(String[] args) throws Exception {
+        if (args.length != 2) {
+            System.err.println("Usage: TreePairArchive <datasetDir> <archive" + EXTENSION + ">");
+            return;
+        }
+        long start = System.nanoTime();
+        List<TreePair> pairs = DatasetLoader.load(args[0]);
+        write(args[1], pairs);
+        System.out.println("Wrote " + pairs.size() + " pairs to " + args[1] + " in "
+                + (System.nanoTime() - start) / 1000000 + " ms");
+    }
+}
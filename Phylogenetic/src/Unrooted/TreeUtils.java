@@ -4,29 +4,15 @@ import java.util.*;
 
 public class TreeUtils {
 
-    // Helper: DFS path finder
-    public static List<TreeNode> findPath(TreeNode current, TreeNode target, List<TreeNode> path, List<TreeNode> visited) { 
-
-        path.add(current);
-        visited.add(current);
-        if (current == target) {
-            return new ArrayList<>(path);
-        }
-        for (TreeNode neighbor : current.neighbors) {
-            if (!visited.contains(neighbor)) {
-                List<TreeNode> result = findPath(neighbor, target, path, visited);
-                if (result != null) {
-                    return result;
-                }
-            }
-        } 
-        path.remove(path.size() - 1); // backtrack
-        return null;
+    // DFS path finder over raw neighbour lists (iterative, see Traversal); trees answer path queries
+    // through PhylogeneticTree.findPath
+    public static List<TreeNode> findPath(TreeNode current, TreeNode target) {
+        return Traversal.get().path(current, target);
     }
 
-    // Remove singleton trees from the forest and also remove the corresponding taxon from T_local. And Return the String label of the deleted taxon
-    public static ArrayList<String> removeSingletons(Forest forest, PhylogeneticTree T_local) {
-        ArrayList<String> deletedLabels = new ArrayList<>();
+    // Remove singleton trees from the forest and also remove the corresponding taxon from T_local. And Return the taxon set of each deleted leaf
+    public static ArrayList<int[]> removeSingletons(Forest forest, PhylogeneticTree T_local) {
+        ArrayList<int[]> deletedLabels = new ArrayList<>();
 
         List<PhylogeneticTree> toRemove = new ArrayList<>();
         for (PhylogeneticTree tree : forest.components) {
@@ -34,13 +20,13 @@ public class TreeUtils {
             if(tree.nodes.size() == 2){
                 if((tree.nodes.get(0).isLeaf && !tree.nodes.get(1).isLeaf) || (tree.nodes.get(1).isLeaf && !tree.nodes.get(0).isLeaf)){
                     if(tree.nodes.get(0).isLeaf){
-                        deletedLabels.add(tree.nodes.get(0).label);
-                        removeLeafFromTree(T_local, tree.nodes.get(0).label);
+                        deletedLabels.add(tree.nodes.get(0).taxa);
+                        removeLeafFromTree(T_local, tree.nodes.get(0).taxon);
                         
                     }
                     else{
-                        deletedLabels.add(tree.nodes.get(1).label);
-                        removeLeafFromTree(T_local, tree.nodes.get(1).label);
+                        deletedLabels.add(tree.nodes.get(1).taxa);
+                        removeLeafFromTree(T_local, tree.nodes.get(1).taxon);
                     }
                     toRemove.add(tree);
                     //System.out.println(tree.nodes.get(0).isLeaf + " " + tree.nodes.get(1).isLeaf);
@@ -50,9 +36,9 @@ public class TreeUtils {
             if (tree.nodes.size() == 1) {
                 TreeNode single = tree.nodes.get(0);
                 if (single.isLeaf) {
-                    deletedLabels.add(single.label);
+                    deletedLabels.add(single.taxa);
                     //System.out.println(single.label);
-                    removeLeafFromTree(T_local, single.label);
+                    removeLeafFromTree(T_local, single.taxon);
                     toRemove.add(tree);
                 }
             }
@@ -60,12 +46,13 @@ public class TreeUtils {
             if(tree.nodes.size() >= 3){
                 for (int i = 0; i < tree.nodes.size(); i++) {
                     if(tree.nodes.get(i).neighbors.isEmpty()){
-                        tree.nodes.remove(i);
+                        tree = forest.writable(tree);
+                        tree.removeNodeAt(i);
                     }
                 }
             }
         }
-        forest.components.removeAll(toRemove);
+        forest.removeComponents(toRemove);
 
         boolean allInternal = true;
         for (int i = 0; i < T_local.nodes.size(); i++) {
@@ -74,21 +61,15 @@ public class TreeUtils {
             }
         }
         if(allInternal){
-            T_local.nodes.clear();
+            T_local.clearNodes();
         }
 
         return deletedLabels;
     }
 
-    // Remove a given leaf (by label) from the provided tree.
-    public static void removeLeafFromTree(PhylogeneticTree tree, String label) {
-        TreeNode target = null;
-        for (TreeNode node : tree.nodes) {
-            if (node.isLeaf && node.label.equals(label)) {
-                target = node;
-                break;
-            }
-        }
+    // Remove a given leaf (by taxon id) from the provided tree.
+    public static void removeLeafFromTree(PhylogeneticTree tree, int taxon) {
+        TreeNode target = findLeafByTaxon(tree, taxon);
         if (target != null) {
             for (TreeNode neighbor : new ArrayList<>(target.neighbors)) {
                 tree.cutEdge(target, neighbor);
@@ -98,71 +79,99 @@ public class TreeUtils {
     }
 
 
-    // Check whether forest F is an agreement forest for T_local.
+    // Check whether forest F is an agreement forest for T_local: every component is homeomorphic to T_local
+    // restricted to its leaves and the embeddings are vertex-disjoint. Linear time; nothing is copied or
+    // changed (see AgreementCheck).
     public static boolean isAgreementForest(PhylogeneticTree T_local, Forest F) {
-
-        Forest Fcopy = new Forest();
-        Fcopy = F.copyForest();
-
-        PhylogeneticTree Tcopy = new PhylogeneticTree();
-        Tcopy = T_local.copyTree();
-        
-        // For every component, restrict T_local to that component's leaves and check homeomorphism.
-        for (PhylogeneticTree component : Fcopy.components) {
-            List<String> leaves = new ArrayList<>();
-            for (TreeNode node : component.nodes) {
-                if (node.isLeaf) {
-                    leaves.add(node.label);
-                }
-            }
-            PhylogeneticTree restrictedT = Tcopy.getEmbedding(leaves);
-
-            if (!TreeUtils.areHomeomorphic(restrictedT, component)) {
-                return false;
-            }
-        }
-        // T_local.printAdjacencyList();
-        // F.printForest();
-        return true;
+        return AgreementCheck.isAgreementForest(T_local, F);
     }
     
-
     // Reduce common cherries between T_local and every component in forest.
-    // (Uses TreeUtils.collapseCherry, which now works by label so that both trees are updated properly.)
+    // (Uses TreeUtils.collapseCherry, which works by taxon id so that both trees are updated properly.)
+    // Components are handled in order and each one until it has no common cherry left, always collapsing
+    // the first common cherry in T_local's cherry order. One round is a single linear pass: the cherries
+    // of all components from the current one on go into a hash index keyed by taxon pair, and T_local's
+    // cherries are looked up in it; the lowest component with a hit is the one the order reaches next.
     public static boolean findAndReduceCommonCherries(Forest forest, PhylogeneticTree T_local) {
         boolean changeMade = false;
-        for (int i = 0; i < forest.components.size(); i++) {
+        CherryTable componentCherries = new CherryTable();
+        int i = 0;
+        while (i < forest.components.size()) {
+            componentCherries.clear();
+            for (int c = i; c < forest.components.size(); c++) {
+                addCherries(forest.components.get(c), componentCherries, c);
+            }
 
-            while (true) {
-                PhylogeneticTree t1 = T_local;
-                PhylogeneticTree t2 = forest.components.get(i);
-                List<List<TreeNode>> commonCherries = TreeUtils.findCommonCherries(t1, t2);
-        
-                if (commonCherries.isEmpty()) {
-                    break; // no more common cherries
+            int found = -1;
+            TreeNode a = null;
+            TreeNode b = null;
+            for (TreeNode parent : T_local.cherryNodes()) {
+                List<TreeNode> neighbors = parent.neighbors;
+                for (int x = 0; x < neighbors.size(); x++) {
+                    TreeNode leaf1 = neighbors.get(x);
+                    if (!leaf1.isLeaf) continue;
+                    for (int y = x + 1; y < neighbors.size(); y++) {
+                        TreeNode leaf2 = neighbors.get(y);
+                        if (!leaf2.isLeaf) continue;
+                        int c = componentCherries.get(leaf1.taxon, leaf2.taxon);
+                        if (c != -1 && (found == -1 || c < found)) {
+                            found = c;
+                            a = leaf1;
+                            b = leaf2;
+                        }
+                    }
+                }
+            }
+            if (T_local.nodes.size() == 2 && T_local.nodes.get(0).isLeaf && T_local.nodes.get(1).isLeaf) {
+                TreeNode leaf1 = T_local.nodes.get(0);
+                TreeNode leaf2 = T_local.nodes.get(1);
+                int c = componentCherries.get(leaf1.taxon, leaf2.taxon);
+                if (c != -1 && (found == -1 || c < found)) {
+                    found = c;
+                    a = leaf1;
+                    b = leaf2;
                 }
-                
-                changeMade = true;
+            }
 
-                // System.out.println("Reducing cherries in component " + i);
-                // System.out.println("Common cherries: " + commonCherries.size());
+            if (found == -1) {
+                break; // no component from i on shares a cherry with T_local
+            }
+            i = found;
+            PhylogeneticTree t1 = T_local;
+            PhylogeneticTree t2 = forest.writable(forest.components.get(i)); // cherry nodes are looked up by taxon id, so a fresh copy is fine
+            changeMade = true;
 
-                List<TreeNode> cherry = commonCherries.get(0); // pick one
-                //System.out.println("Reducing cherry: " + cherry.get(0).label + " + " + cherry.get(1).label);
+            int taxon1 = a.taxon;
+            int taxon2 = b.taxon;
+            TreeUtils.collapseCherry(t1, taxon1, taxon2);
+            TreeUtils.collapseCherry(t2, taxon1, taxon2);
 
-                 // Skip if either label is a merged label
-                
-                TreeUtils.collapseCherry(t1, cherry.get(0).label,cherry.get(1).label);
-                TreeUtils.collapseCherry(t2, cherry.get(0).label,cherry.get(1).label);
-    
-                t1.getRestriction();
-                t2.getRestriction(); 
-            }
+            t1.getRestriction();
+            t2.getRestriction();
         }
         return changeMade;
     }
 
-    
+    // Puts every cherry of the tree into the table with the given value, in findCherries order.
+    private static void addCherries(PhylogeneticTree tree, CherryTable table, int value) {
+        for (TreeNode node : tree.nodes) {
+            if (node.isLeaf) continue;
+            List<TreeNode> neighbors = node.neighbors;
+            for (int x = 0; x < neighbors.size(); x++) {
+                TreeNode leaf1 = neighbors.get(x);
+                if (!leaf1.isLeaf) continue;
+                for (int y = x + 1; y < neighbors.size(); y++) {
+                    TreeNode leaf2 = neighbors.get(y);
+                    if (leaf2.isLeaf) {
+                        table.putIfAbsent(leaf1.taxon, leaf2.taxon, value);
+                    }
+                }
+            }
+        }
+        if (tree.nodes.size() == 2 && tree.nodes.get(0).isLeaf && tree.nodes.get(1).isLeaf) {
+            table.putIfAbsent(tree.nodes.get(0).taxon, tree.nodes.get(1).taxon, value);
+        }
+    }
 
     public static boolean areHomeomorphic(PhylogeneticTree t1, PhylogeneticTree t2) {
         // Restrict both trees first
@@ -177,8 +186,8 @@ public class TreeUtils {
             }
     
             List<TreeNode> cherry = commonCherries.get(0); // pick one
-            collapseCherry(t1, cherry.get(0).label,cherry.get(1).label);
-            collapseCherry(t2, cherry.get(0).label,cherry.get(1).label);
+            collapseCherry(t1, cherry.get(0).taxon,cherry.get(1).taxon);
+            collapseCherry(t2, cherry.get(0).taxon,cherry.get(1).taxon);
 
             t1.getRestriction();
             t2.getRestriction();
@@ -188,24 +197,18 @@ public class TreeUtils {
         return areIdentical(t1, t2);
     }
 
+    // Cherries of t1, in t1's order, that are also cherries of t2; t2's cherries are hashed by taxon pair.
     public static List<List<TreeNode>> findCommonCherries(PhylogeneticTree t1, PhylogeneticTree t2) {
-        List<List<TreeNode>> cherries1 = findCherries(t1);
-        List<List<TreeNode>> cherries2 = findCherries(t2);
-        
+        CherryTable cherries2 = new CherryTable();
+        addCherries(t2, cherries2, 0);
+
         List<List<TreeNode>> common = new ArrayList<>();
-        for (List<TreeNode> c1 : cherries1) {
-            Set<String> set1 = new HashSet<>();
-            for (TreeNode n : c1) set1.add(n.label);
-    
-            for (List<TreeNode> c2 : cherries2) {
-                Set<String> set2 = new HashSet<>();
-                for (TreeNode n : c2) set2.add(n.label);
-    
-                // If c1 ⊆ c2 or c2 ⊆ c1
-                if (set1.containsAll(set2) || set2.containsAll(set1)) {
-                    common.add(c1); // or add whichever one you prefer
-                    break; // Optional: if one match is enough
-                }
+        if (cherries2.isEmpty()) {
+            return common;
+        }
+        for (List<TreeNode> c1 : findCherries(t1)) {
+            if (cherries2.get(c1.get(0).taxon, c1.get(1).taxon) != -1) {
+                common.add(c1);
             }
         }
         return common;
@@ -213,9 +216,9 @@ public class TreeUtils {
     
     
     public static boolean isSameCherry(List<TreeNode> c1, List<TreeNode> c2) {
-        String l1 = c1.get(0).label, l2 = c1.get(1).label;
-        String m1 = c2.get(0).label, m2 = c2.get(1).label;
-        return (l1.equals(m1) && l2.equals(m2)) || (l1.equals(m2) && l2.equals(m1));
+        int l1 = c1.get(0).taxon, l2 = c1.get(1).taxon;
+        int m1 = c2.get(0).taxon, m2 = c2.get(1).taxon;
+        return (l1 == m1 && l2 == m2) || (l1 == m2 && l2 == m1);
     }
     
     public static List<List<TreeNode>> findCherries(PhylogeneticTree tree) {
@@ -251,9 +254,10 @@ public class TreeUtils {
     }
     
     
-    public static void collapseCherry(PhylogeneticTree tree, String label1, String label2) {
-        TreeNode a = findLeafByLabel(tree, label1);
-        TreeNode b = findLeafByLabel(tree, label2);
+    // The merged leaf keeps the smaller of the two taxon ids, so both trees agree on its id.
+    public static void collapseCherry(PhylogeneticTree tree, int taxon1, int taxon2) {
+        TreeNode a = findLeafByTaxon(tree, taxon1);
+        TreeNode b = findLeafByTaxon(tree, taxon2);
         
         if (a == null || b == null) {
             throw new RuntimeException("Cherry nodes not found!");
@@ -261,9 +265,7 @@ public class TreeUtils {
 
         if(tree.nodes.size() == 2){
             if(a.isLeaf && b.isLeaf){
-                String mergedLabel = mergeLabels(label1, label2);
-                TreeNode merged = new TreeNode(mergedLabel);
-                merged.isLeaf = true;
+                TreeNode merged = TreeNode.merge(a, b);
                 tree.addNode(merged);
 
                 tree.removeNode(a);
@@ -276,15 +278,13 @@ public class TreeUtils {
                 throw new RuntimeException("Cherry collapse error: leaves do not share parent");
             }
         
-            String mergedLabel = mergeLabels(label1, label2);
-            TreeNode merged = new TreeNode(mergedLabel);
-            merged.isLeaf = true;
+            TreeNode merged = TreeNode.merge(a, b);
             tree.addNode(merged);
         
-            parent.neighbors.remove(a);
-            parent.neighbors.remove(b);
-            parent.neighbors.add(merged);
-            merged.neighbors.add(parent);
+            tree.unlink(parent, a);
+            tree.unlink(parent, b);
+            tree.link(parent, merged);
+            tree.link(merged, parent);
         
             tree.removeNode(a);
             tree.removeNode(b);
@@ -292,15 +292,48 @@ public class TreeUtils {
         
     }
 
-    public static TreeNode findLeafByLabel(PhylogeneticTree tree, String label) {
-        for (TreeNode node : tree.nodes) {
-            if (node.isLeaf && node.label.equals(label)) {
-                return node;
+    public static TreeNode findLeafByTaxon(PhylogeneticTree tree, int taxon) {
+        return tree.findLeaf(taxon);
+    }
+        
+
+    // Union of two sorted taxon id arrays, in one linear merge.
+    public static int[] unionTaxa(int[] a, int[] b) {
+        int[] union = new int[a.length + b.length];
+        int i = 0, j = 0, n = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                union[n++] = a[i++];
+            } else if (a[i] > b[j]) {
+                union[n++] = b[j++];
+            } else {
+                union[n++] = a[i++];
+                j++;
             }
         }
-        return null;
+        while (i < a.length) union[n++] = a[i++];
+        while (j < b.length) union[n++] = b[j++];
+        return n == union.length ? union : Arrays.copyOf(union, n);
+    }
+
+    // "1_2_5" style label for a taxon set, taking the input labels from the leaves of labelSource.
+    // Labels are ordered numerically like mergeLabels does (lexicographically if any is not a number).
+    public static String formatTaxa(int[] taxa, PhylogeneticTree labelSource) {
+        List<String> labels = new ArrayList<>();
+        boolean numeric = true;
+        for (int taxon : taxa) {
+            TreeNode leaf = labelSource.findLeaf(taxon);
+            String label = leaf != null ? leaf.getLabel() : String.valueOf(taxon);
+            labels.add(label);
+            numeric &= label.matches("-?\\d+");
+        }
+        if (numeric) {
+            labels.sort(Comparator.comparingLong(Long::parseLong));
+        } else {
+            Collections.sort(labels);
+        }
+        return String.join("_", labels);
     }
-        
 
     public static String mergeLabels(String label1, String label2) {
         Set<Integer> values = new TreeSet<>(); // TreeSet keeps things sorted
@@ -337,42 +370,39 @@ public class TreeUtils {
             return false;
         }
     
-        // Check labels: sets must match
-        Set<String> t1Labels = new HashSet<>(Arrays.asList(t1n1.label, t1n2.label));
-        Set<String> t2Labels = new HashSet<>(Arrays.asList(t2n1.label, t2n2.label));
-    
-        return t1Labels.equals(t2Labels);
+        // Check taxa: the unordered pairs must match
+        return (t1n1.taxon == t2n1.taxon && t1n2.taxon == t2n2.taxon)
+            || (t1n1.taxon == t2n2.taxon && t1n2.taxon == t2n1.taxon);
     }
 
-    public static Set<List<TreeNode>> getOriginalEdgesInEmbedding(PhylogeneticTree tree, List<String> leafLabels) {
-        List<TreeNode> leafNodes = new ArrayList<>();
-        for (TreeNode node : tree.nodes) {
-            if (node.isLeaf && leafLabels.contains(node.label)) {
-                leafNodes.add(node);
-            }
-        }
-    
-        Set<List<TreeNode>> edgeSet = new HashSet<>();
-    
-        for (int i = 0; i < leafNodes.size(); i++) {
-            for (int j = i + 1; j < leafNodes.size(); j++) {
-                TreeNode start = leafNodes.get(i);
-                TreeNode end = leafNodes.get(j);
-    
-                List<TreeNode> path = TreeUtils.findPath(start, end, new ArrayList<>(), new ArrayList<>());
-                if (path != null) {
-                    for (int k = 0; k < path.size() - 1; k++) {
-                        TreeNode u = path.get(k);
-                        TreeNode v = path.get(k + 1);
-    
-                        List<TreeNode> edge = (System.identityHashCode(u) < System.identityHashCode(v)) ?
-                                Arrays.asList(u, v) : Arrays.asList(v, u);
-    
-                        edgeSet.add(edge);
-                    }
+    // Forest of the tree restricted to each taxon set (e.g. a solver's solution): one component per set,
+    // a lone leaf for a single taxon. Taxa the tree does not have are left out.
+    public static Forest restrictToBlocks(PhylogeneticTree tree, List<int[]> blocks) {
+        Forest forest = new Forest();
+        for (int[] block : blocks) {
+            long[] bits = LeafBits.EMPTY;
+            TreeNode single = null;
+            for (int taxon : block) {
+                TreeNode leaf = tree.findLeaf(taxon);
+                if (leaf != null) {
+                    bits = LeafBits.add(bits, taxon);
+                    single = leaf;
                 }
             }
+            int size = LeafBits.cardinality(bits);
+            if (size == 1) {
+                PhylogeneticTree component = new PhylogeneticTree();
+                component.addNode(single.copyLeaf());
+                forest.addComponent(component);
+            } else if (size > 1) {
+                forest.addComponent(Embedding.of(tree, bits).restriction());
+            }
         }
-        return edgeSet;
+        return forest;
+    }
+
+    // Edges of the tree used by the embedding of the given leaves, as (parent, child) pairs of its nodes.
+    public static List<List<TreeNode>> getOriginalEdgesInEmbedding(PhylogeneticTree tree, long[] leafTaxa) {
+        return Embedding.of(tree, leafTaxa).edges();
     }
 }
\ No newline at end of file
@@ -0,0 +1,41 @@
+package Unrooted;
+
+/**
+ * Zobrist hashing of search states. Every taxon id has a fixed pseudo-random 64-bit key; a tree's leaf set
+ * hashes to the xor of its taxa's keys, which PhylogeneticTree keeps up to date on every leaf it gains or
+ * loses (cuts, merges, cherry collapses, removals, and their undo), so reading it costs nothing.
+ *
+ * A solver state (T_local, forest) hashes to a mix of T_local's leaf hash and the sum of its components'
+ * mixed leaf hashes. The sum does not depend on component order, and the mixing keeps a partition from
+ * hashing like its union. Both trees are restrictions of the inputs to those leaf sets, so the hash
+ * identifies the subproblem however it was reached (cutting a then b, or b then a).
+ */
+public final class Zobrist {
+    private static final long TREE_SALT = 0x2545F4914F6CDD1DL;
+    private static final long FLAG_SALT = 0x6A09E667F3BCC909L;
+
+    private Zobrist() {
+    }
+
+    // Key of one taxon id; computed rather than stored, so it is the same in every thread and run.
+    public static long taxon(int taxon) {
+        return mix(taxon);
+    }
+
+    // Hash of the state of a search on T_local and forest; flag tells apart solver modes that answer differently.
+    public static long state(PhylogeneticTree T_local, Forest forest, boolean flag) {
+        long hash = mix(T_local.leafHash ^ TREE_SALT);
+        for (PhylogeneticTree component : forest.components) {
+            hash += mix(component.leafHash);
+        }
+        return flag ? hash ^ FLAG_SALT : hash;
+    }
+
+    // SplitMix64 finaliser.
+    private static long mix(long x) {
+        long z = x + 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}